@@ -0,0 +1,103 @@
+package com.gazman.disk_cache;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Blocking helpers for the benchmarks, the stand-in Handler runs the callbacks on the cache threads
+ */
+class Caches {
+    /**
+     * Values of the journal parameter of the suites
+     */
+    static final String LOG_JOURNAL = "log";
+    static final String SQLITE_JOURNAL = "sqlite";
+    private static final int FILL_BATCH_SIZE = 500;
+    private static final String DB_NAME = "vif_benchmark.db";
+
+    static File newDir(String name) {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "vif_benchmark_" + name + "_" + System.nanoTime());
+        if (!dir.mkdirs()) {
+            throw new IllegalStateException("Error creating " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * @param journal {@link #LOG_JOURNAL} or {@link #SQLITE_JOURNAL}, that runs CacheDb through
+     *                the JDBC backed SQLite stand-ins
+     */
+    static VIF newCache(File dir, long maxSize, String journal) {
+        if (SQLITE_JOURNAL.equals(journal)) {
+            return new VIF(new Context(dir), DB_NAME, maxSize);
+        }
+        return new VIF(dir, maxSize);
+    }
+
+    static void deleteDir(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteDir(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+    static void put(VIF vif, String key, byte[] payload) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        vif.put(key, new ByteArrayInputStream(payload), latch::countDown);
+        latch.await();
+    }
+
+    /**
+     * Puts count entries named key0, key1... in batches
+     */
+    static void fill(VIF vif, int count, byte[] payload) throws InterruptedException {
+        for (int i = 0; i < count; i += FILL_BATCH_SIZE) {
+            Map<String, InputStream> entries = new LinkedHashMap<>();
+            for (int j = i; j < Math.min(count, i + FILL_BATCH_SIZE); j++) {
+                entries.put("key" + j, new ByteArrayInputStream(payload));
+            }
+            CountDownLatch latch = new CountDownLatch(1);
+            vif.putAll(entries, results -> latch.countDown());
+            latch.await();
+        }
+    }
+
+    static File getFile(VIF vif, String key) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<File> result = new AtomicReference<>();
+        vif.getAsFile(key, file -> {
+            result.set(file);
+            latch.countDown();
+        });
+        latch.await();
+        return result.get();
+    }
+
+    /**
+     * Waits until the cache thread runs all the tasks that were submitted so far
+     */
+    static void drain(VIF vif) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        vif.deleteAll(Collections.<String>emptyList(), results -> latch.countDown());
+        latch.await();
+    }
+}
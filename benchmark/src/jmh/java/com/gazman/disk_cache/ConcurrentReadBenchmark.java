@@ -0,0 +1,64 @@
+package com.gazman.disk_cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read throughput of a shared cache as the number of reading threads grows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ConcurrentReadBenchmark {
+    private static final int ENTRIES = 1000;
+
+    private File dir;
+    private VIF vif;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        dir = Caches.newDir("concurrent_read");
+        vif = new VIF(dir, 256L * 1024 * 1024);
+        Caches.fill(vif, ENTRIES, Caches.payload(4096));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        vif.shutDownAndWait();
+        Caches.deleteDir(dir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public File read1() throws InterruptedException {
+        return read();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public File read4() throws InterruptedException {
+        return read();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public File read8() throws InterruptedException {
+        return read();
+    }
+
+    private File read() throws InterruptedException {
+        return Caches.getFile(vif, "key" + ThreadLocalRandom.current().nextInt(ENTRIES));
+    }
+}
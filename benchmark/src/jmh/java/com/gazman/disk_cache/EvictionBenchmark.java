@@ -0,0 +1,57 @@
+package com.gazman.disk_cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the put that fills the cache, including the eviction pass it triggers down to
+ * the low watermark, by the number of entries in the cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EvictionBenchmark {
+    private static final int ENTRY_SIZE = 1024;
+
+    @Param({"1000", "10000"})
+    public int entryCount;
+
+    @Param({Caches.LOG_JOURNAL, Caches.SQLITE_JOURNAL})
+    public String journal;
+
+    private File dir;
+    private VIF vif;
+    private byte[] payload;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws InterruptedException {
+        dir = Caches.newDir("eviction");
+        vif = Caches.newCache(dir, (long) entryCount * ENTRY_SIZE, journal);
+        payload = Caches.payload(ENTRY_SIZE);
+        Caches.fill(vif, entryCount, payload);
+        Caches.drain(vif);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        vif.shutDownAndWait();
+        Caches.deleteDir(dir);
+    }
+
+    @Benchmark
+    public void evict() throws InterruptedException {
+        Caches.put(vif, "overflow", payload);
+        Caches.drain(vif);
+    }
+}
@@ -0,0 +1,55 @@
+package com.gazman.disk_cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of getAsFile hits and misses, from the call until the callback
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GetBenchmark {
+    private static final int ENTRIES = 1000;
+
+    @Param({Caches.LOG_JOURNAL, Caches.SQLITE_JOURNAL})
+    public String journal;
+
+    private File dir;
+    private VIF vif;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        dir = Caches.newDir("get");
+        vif = Caches.newCache(dir, 256L * 1024 * 1024, journal);
+        Caches.fill(vif, ENTRIES, Caches.payload(4096));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        vif.shutDownAndWait();
+        Caches.deleteDir(dir);
+    }
+
+    @Benchmark
+    public File hit() throws InterruptedException {
+        return Caches.getFile(vif, "key" + ThreadLocalRandom.current().nextInt(ENTRIES));
+    }
+
+    @Benchmark
+    public File miss() throws InterruptedException {
+        return Caches.getFile(vif, "missing" + ThreadLocalRandom.current().nextInt(ENTRIES));
+    }
+}
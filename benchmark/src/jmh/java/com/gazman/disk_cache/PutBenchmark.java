@@ -0,0 +1,54 @@
+package com.gazman.disk_cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Put throughput by payload size, each put waits for its commit
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PutBenchmark {
+    private static final int KEYS = 64;
+
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({Caches.LOG_JOURNAL, Caches.SQLITE_JOURNAL})
+    public String journal;
+
+    private File dir;
+    private VIF vif;
+    private byte[] payload;
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Caches.newDir("put");
+        vif = Caches.newCache(dir, 256L * 1024 * 1024, journal);
+        payload = Caches.payload(payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        vif.shutDownAndWait();
+        Caches.deleteDir(dir);
+    }
+
+    @Benchmark
+    public void put() throws InterruptedException {
+        Caches.put(vif, "key" + (counter++ % KEYS), payload);
+    }
+}
@@ -0,0 +1,57 @@
+package com.gazman.disk_cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Put throughput of concurrent writers by the number of shards, one shard is a plain VIF
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class ShardedPutBenchmark {
+    private static final int KEYS = 1024;
+
+    @Param({"1", "4"})
+    public int shardCount;
+
+    private File dir;
+    private ShardedVIF vif;
+    private byte[] payload;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = Caches.newDir("sharded_put");
+        vif = new ShardedVIF(dir, shardCount, 256L * 1024 * 1024);
+        payload = Caches.payload(16 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        vif.shutDownAndWait();
+        Caches.deleteDir(dir);
+    }
+
+    @Benchmark
+    public Boolean put() throws InterruptedException, ExecutionException {
+        String key = "key" + (counter.getAndIncrement() % KEYS);
+        return vif.putAsync(key, new ByteArrayInputStream(payload)).get();
+    }
+}
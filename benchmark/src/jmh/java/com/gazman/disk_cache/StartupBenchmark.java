@@ -0,0 +1,65 @@
+package com.gazman.disk_cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recovery of an existing cache: the time until the first hit and until the whole
+ * journal is loaded, by the number of entries
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartupBenchmark {
+    private static final long MAX_SIZE = 1024L * 1024 * 1024;
+
+    @Param({"1000", "10000"})
+    public int entryCount;
+
+    @Param({Caches.LOG_JOURNAL, Caches.SQLITE_JOURNAL})
+    public String journal;
+
+    private File dir;
+    private VIF vif;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        dir = Caches.newDir("startup");
+        VIF vif = Caches.newCache(dir, MAX_SIZE, journal);
+        Caches.fill(vif, entryCount, Caches.payload(128));
+        vif.shutDownAndWait();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeCache() {
+        vif.shutDownAndWait();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Caches.deleteDir(dir);
+    }
+
+    @Benchmark
+    public File firstHit() throws InterruptedException {
+        vif = Caches.newCache(dir, MAX_SIZE, journal);
+        return Caches.getFile(vif, "key" + (entryCount - 1));
+    }
+
+    @Benchmark
+    public void fullLoad() throws InterruptedException {
+        vif = Caches.newCache(dir, MAX_SIZE, journal);
+        Caches.drain(vif);
+    }
+}
@@ -0,0 +1,33 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * JVM stand-in, only what the library uses
+ */
+public class Context {
+    private final File cacheDir;
+
+    public Context() {
+        this(new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * @param cacheDir the external cache dir, the databases are kept in it too
+     */
+    public Context(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public File getExternalCacheDir() {
+        return cacheDir;
+    }
+
+    public File getDatabasePath(String name) {
+        return new File(new File(cacheDir, "databases"), name);
+    }
+}
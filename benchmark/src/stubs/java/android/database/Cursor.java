@@ -0,0 +1,24 @@
+package android.database;
+
+import java.io.Closeable;
+
+/**
+ * JVM stand-in, only what the library uses
+ */
+public interface Cursor extends Closeable {
+
+    boolean moveToFirst();
+
+    boolean moveToNext();
+
+    long getLong(int columnIndex);
+
+    int getInt(int columnIndex);
+
+    String getString(int columnIndex);
+
+    boolean isNull(int columnIndex);
+
+    @Override
+    void close();
+}
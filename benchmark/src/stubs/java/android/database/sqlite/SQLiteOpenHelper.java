@@ -0,0 +1,67 @@
+package android.database.sqlite;
+
+import android.content.Context;
+
+import java.io.File;
+
+import io.requery.android.database.sqlite.SQLiteDatabase;
+
+/**
+ * JVM stand-in backed by a JDBC SQLite driver, such as sqlite-jdbc, that has to be on the classpath.
+ * Same as on Android, the schema version is kept in user_version.
+ */
+public abstract class SQLiteOpenHelper {
+    private final Context context;
+    private final String name;
+    private final int version;
+    private SQLiteDatabase database;
+
+    public SQLiteOpenHelper(Context context, String name, Object factory, int version) {
+        this.context = context;
+        this.name = name;
+        this.version = version;
+    }
+
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (database == null) {
+            File file = context.getDatabasePath(name);
+            File parent = file.getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IllegalStateException("Error creating " + parent);
+            }
+            SQLiteDatabase database = SQLiteDatabase.open(file);
+            int oldVersion = database.getVersion();
+            if (oldVersion != version) {
+                database.beginTransaction();
+                try {
+                    if (oldVersion == 0) {
+                        onCreate(database);
+                    } else {
+                        onUpgrade(database, oldVersion, version);
+                    }
+                    database.setVersion(version);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
+            this.database = database;
+        }
+        return database;
+    }
+
+    public SQLiteDatabase getReadableDatabase() {
+        return getWritableDatabase();
+    }
+
+    public abstract void onCreate(SQLiteDatabase db);
+
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+    public synchronized void close() {
+        if (database != null) {
+            database.close();
+            database = null;
+        }
+    }
+}
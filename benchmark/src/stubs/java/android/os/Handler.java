@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * JVM stand-in, there is no main thread so callbacks run on the posting thread
+ */
+public class Handler {
+
+    public Handler(Looper looper) {
+    }
+
+    public boolean post(Runnable runnable) {
+        runnable.run();
+        return true;
+    }
+}
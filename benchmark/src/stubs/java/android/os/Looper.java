@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * JVM stand-in, only what the library uses
+ */
+public class Looper {
+    private static final Looper MAIN_LOOPER = new Looper();
+
+    public static Looper getMainLooper() {
+        return MAIN_LOOPER;
+    }
+}
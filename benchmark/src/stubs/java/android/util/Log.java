@@ -0,0 +1,17 @@
+package android.util;
+
+/**
+ * JVM stand-in, writes to the standard error
+ */
+public class Log {
+
+    public static int e(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg + " " + tr);
+        return 0;
+    }
+}
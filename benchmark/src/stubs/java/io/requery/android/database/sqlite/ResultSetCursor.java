@@ -0,0 +1,103 @@
+package io.requery.android.database.sqlite;
+
+import android.database.Cursor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Cursor over a forward only JDBC result set. Column indexes start at 0 same as on Android,
+ * moveToFirst only works before the cursor was moved.
+ */
+class ResultSetCursor implements Cursor {
+    private final Statement statement;
+    private final ResultSet resultSet;
+    private int position = -1;
+
+    /**
+     * @param statement closed with the cursor, or null
+     */
+    ResultSetCursor(Statement statement, ResultSet resultSet) {
+        this.statement = statement;
+        this.resultSet = resultSet;
+    }
+
+    /**
+     * @return the first column of the first row and closes the cursor
+     */
+    long getFirstLong() {
+        try {
+            if (!moveToFirst()) {
+                throw new IllegalStateException("Empty result");
+            }
+            return getLong(0);
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        if (position != -1) {
+            throw new UnsupportedOperationException("The cursor was already moved");
+        }
+        return moveToNext();
+    }
+
+    @Override
+    public boolean moveToNext() {
+        try {
+            position++;
+            return resultSet.next();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        try {
+            return resultSet.getLong(columnIndex + 1);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        try {
+            return resultSet.getInt(columnIndex + 1);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        try {
+            return resultSet.getString(columnIndex + 1);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        try {
+            return resultSet.getObject(columnIndex + 1) == null;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            resultSet.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        SQLiteDatabase.close(statement);
+    }
+}
@@ -0,0 +1,167 @@
+package io.requery.android.database.sqlite;
+
+import android.database.Cursor;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * JVM stand-in over a JDBC connection. Transactions nest the Android way, they are committed together
+ * with the outer one and any level that was not marked successful rolls back the whole transaction.
+ */
+public class SQLiteDatabase {
+    private final Connection connection;
+    private int transactionDepth;
+    private boolean levelSuccessful;
+    private boolean transactionFailed;
+
+    private SQLiteDatabase(Connection connection) {
+        this.connection = connection;
+    }
+
+    public static SQLiteDatabase open(File file) {
+        try {
+            return new SQLiteDatabase(DriverManager.getConnection("jdbc:sqlite:" + file.getPath()));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error opening " + file
+                    + ", is a JDBC SQLite driver such as sqlite-jdbc on the classpath?", e);
+        }
+    }
+
+    public void execSQL(String sql) {
+        execSQL(sql, new Object[0]);
+    }
+
+    public synchronized void execSQL(String sql, Object[] bindArgs) {
+        PreparedStatement statement = null;
+        try {
+            statement = connection.prepareStatement(sql);
+            for (int i = 0; i < bindArgs.length; i++) {
+                statement.setObject(i + 1, bindArgs[i]);
+            }
+            statement.execute();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error executing " + sql, e);
+        } finally {
+            close(statement);
+        }
+    }
+
+    public synchronized Cursor rawQuery(String sql, String[] selectionArgs) {
+        PreparedStatement statement = null;
+        try {
+            statement = connection.prepareStatement(sql);
+            if (selectionArgs != null) {
+                for (int i = 0; i < selectionArgs.length; i++) {
+                    statement.setString(i + 1, selectionArgs[i]);
+                }
+            }
+            Cursor cursor = new ResultSetCursor(statement, statement.executeQuery());
+            statement = null;
+            return cursor;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error querying " + sql, e);
+        } finally {
+            close(statement);
+        }
+    }
+
+    public synchronized SQLiteStatement compileStatement(String sql) {
+        try {
+            return new SQLiteStatement(this, connection.prepareStatement(sql));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error compiling " + sql, e);
+        }
+    }
+
+    public synchronized void beginTransaction() {
+        if (transactionDepth++ == 0) {
+            transactionFailed = false;
+            try {
+                connection.setAutoCommit(false);
+            } catch (SQLException e) {
+                transactionDepth--;
+                throw new IllegalStateException("Error beginning a transaction", e);
+            }
+        }
+        levelSuccessful = false;
+    }
+
+    public synchronized void setTransactionSuccessful() {
+        levelSuccessful = true;
+    }
+
+    public synchronized void endTransaction() {
+        if (!levelSuccessful) {
+            transactionFailed = true;
+        }
+        levelSuccessful = transactionDepth > 1;
+        if (--transactionDepth > 0) {
+            return;
+        }
+        try {
+            if (transactionFailed) {
+                connection.rollback();
+            } else {
+                connection.commit();
+            }
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error ending a transaction", e);
+        }
+    }
+
+    public synchronized int getVersion() {
+        Statement statement = null;
+        try {
+            statement = connection.createStatement();
+            return (int) new ResultSetCursor(null, statement.executeQuery("PRAGMA user_version"))
+                    .getFirstLong();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error reading the version", e);
+        } finally {
+            close(statement);
+        }
+    }
+
+    public void setVersion(int version) {
+        execSQL("PRAGMA user_version = " + version);
+    }
+
+    public synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the rowId of the last insert on this connection
+     */
+    synchronized long lastInsertRowId() {
+        Statement statement = null;
+        try {
+            statement = connection.createStatement();
+            return new ResultSetCursor(null, statement.executeQuery("SELECT last_insert_rowid()")).getFirstLong();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error reading the last rowId", e);
+        } finally {
+            close(statement);
+        }
+    }
+
+    static void close(Statement statement) {
+        try {
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
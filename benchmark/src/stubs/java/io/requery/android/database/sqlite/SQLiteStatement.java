@@ -0,0 +1,81 @@
+package io.requery.android.database.sqlite;
+
+import java.io.Closeable;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * JVM stand-in over a JDBC prepared statement, indexes start at 1 same as on Android
+ */
+public class SQLiteStatement implements Closeable {
+    private final SQLiteDatabase database;
+    private final PreparedStatement statement;
+
+    SQLiteStatement(SQLiteDatabase database, PreparedStatement statement) {
+        this.database = database;
+        this.statement = statement;
+    }
+
+    public void bindLong(int index, long value) {
+        try {
+            statement.setLong(index, value);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void bindString(int index, String value) {
+        try {
+            statement.setString(index, value);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void clearBindings() {
+        try {
+            statement.clearParameters();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the rowId of the inserted row
+     */
+    public long executeInsert() {
+        synchronized (database) {
+            try {
+                statement.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            return database.lastInsertRowId();
+        }
+    }
+
+    public int executeUpdateDelete() {
+        synchronized (database) {
+            try {
+                return statement.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    public long simpleQueryForLong() {
+        synchronized (database) {
+            try {
+                return new ResultSetCursor(null, statement.executeQuery()).getFirstLong();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        SQLiteDatabase.close(statement);
+    }
+}
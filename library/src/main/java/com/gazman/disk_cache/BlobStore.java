@@ -0,0 +1,82 @@
+package com.gazman.disk_cache;
+
+import android.util.Log;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content addressed files of deduplicated entries. Entries with the same content and codec share
+ * a single blob, named by the SHA-256 of the codec id and the raw bytes, and spread over 256
+ * sub directories by the first byte of the hash.
+ * <p>
+ * Blobs hold no reference counts of their own, the entries that point to each blob are tracked
+ * by the journal and counted by the {@link CacheIndex}. A blob is deleted with its last entry.
+ */
+class BlobStore {
+    private static final String BLOB_SUFFIX = ".blob";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File dir;
+
+    BlobStore(File dir) {
+        this.dir = dir;
+    }
+
+    File toFile(String hash) {
+        return new File(new File(dir, hash.substring(0, 2)), hash + BLOB_SUFFIX);
+    }
+
+    /**
+     * @return a digest of the content of an entry encoded with the given codec
+     */
+    static MessageDigest newDigest(Codec codec) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+        int id = codec.getId();
+        digest.update(new byte[]{(byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id});
+        return digest;
+    }
+
+    static String toHash(MessageDigest digest) {
+        byte[] bytes = digest.digest();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >>> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Deletes the blobs that no entry points to, left over from a crash between moving a blob
+     * in place and committing its entry
+     */
+    void removeUnreferenced(CacheIndex index) {
+        File[] dirs = dir.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File subDir : dirs) {
+            File[] files = subDir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(BLOB_SUFFIX)) {
+                    continue;
+                }
+                String hash = name.substring(0, name.length() - BLOB_SUFFIX.length());
+                if (index.getReferences(hash) == 0 && !file.delete()) {
+                    Log.e("VIF", "Error removing unused blob " + file);
+                }
+            }
+        }
+    }
+}
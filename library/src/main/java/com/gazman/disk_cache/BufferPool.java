@@ -0,0 +1,46 @@
+package com.gazman.disk_cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of copy buffers shared by all the writes, so concurrent puts never share a buffer and
+ * large buffers are not allocated per put. Only a few idle buffers are kept.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final boolean direct;
+    private final int maxIdle;
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    /**
+     * @param direct if true the buffers are allocated outside of the heap, which saves a copy when
+     *               they are written to a channel
+     */
+    BufferPool(int bufferSize, boolean direct, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return a cleared buffer, return it with {@link #release(ByteBuffer)} once done
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = buffers.poll();
+        }
+        if (buffer == null) {
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        if (buffers.size() < maxIdle) {
+            buffers.push(buffer);
+        }
+    }
+}
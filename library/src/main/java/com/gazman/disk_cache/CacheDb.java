@@ -5,21 +5,49 @@ import android.database.Cursor;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import io.requery.android.database.sqlite.SQLiteDatabase;
+import io.requery.android.database.sqlite.SQLiteStatement;
 
 /**
  * Created by Ilya Gazman on 10/16/2017.
  */
 
-class CacheDb {
+class CacheDb implements Journal {
+    private static final int MAX_ROW_ID = 0;
+    private static final int DELETE_BY_KEY = 1;
+    private static final int DELETE_BY_ROW_ID = 2;
+    private static final int INSERT = 3;
+    private static final int TOUCH = 4;
+    private static final int SAVE_SIZE = 5;
+    private static final int MOVE = 6;
+    private static final int SAVE_MAX_ROW_ID = 7;
+    private static final String[] STATEMENTS = {
+            "SELECT max(coalesce((SELECT max(ROWID) FROM cache), 0), " +
+                    "coalesce((SELECT value FROM meta WHERE name = 'max_row_id'), 0))",
+            "DELETE FROM cache WHERE client_key = ?",
+            "DELETE FROM cache WHERE ROWID = ?",
+            "INSERT INTO cache (ROWID, client_key, file_size, finalized, last_used, created_on, " +
+                    "raw_size, codec, slab, slab_offset, content_hash, checksum) " +
+                    "VALUES (?, ?, ?, 1, ?, ?, ?, ?, ?, ?, ?, ?)",
+            "UPDATE cache set last_used = ? WHERE ROWID = ?",
+            "INSERT or REPLACE INTO meta (name, value) VALUES ('total_size', ?)",
+            "UPDATE cache set slab = ?, slab_offset = ? WHERE ROWID = ?",
+            "INSERT or REPLACE INTO meta (name, value) VALUES ('max_row_id', ?)"
+    };
+    private static final String ENTRY_COLUMNS =
+            "ROWID, client_key, file_size, last_used, raw_size, codec, slab, slab_offset, content_hash, checksum";
+
     private final SqlHelper sqlHelper;
+    private final SQLiteStatement[] statements = new SQLiteStatement[STATEMENTS.length];
 
     CacheDb(Context context, String dbName) {
         sqlHelper = new SqlHelper(context, dbName);
     }
 
-    long getTotalSize() {
+    @Override
+    public long getTotalSize() {
         return new QueryHelper<Long>(-1L) {
             @Override
             Long parse(Cursor cursor) {
@@ -31,32 +59,22 @@ class CacheDb {
         }.query("SELECT sum(file_size) FROM cache where finalized = 1");
     }
 
-    int prepareKey(String key) {
-        long currentTimeMillis = System.currentTimeMillis();
-        execute("INSERT or REPLACE into cache\n" +
-                        "(ROWID, client_key, file_size, finalized, last_used, created_on)\n" +
-                        "VALUES\n" +
-                        "((SELECT ROWID from cache WHERE client_key = ? " +
-                        "UNION " +
-                        "SELECT coalesce(max(ROWID), 0) + 1 from cache limit 1), ?, 0, 0, ?, ?);"
-                , key, key, currentTimeMillis, currentTimeMillis);
-        return new QueryHelper<Integer>(-1) {
+    @Override
+    public CacheIndex.Entry getEntry(String key) {
+        return new QueryHelper<CacheIndex.Entry>(null) {
             @Override
-            Integer parse(Cursor cursor) {
+            CacheIndex.Entry parse(Cursor cursor) {
                 if (cursor.moveToFirst()) {
-                    return cursor.getInt(0);
+                    return toEntry(cursor);
                 }
                 return null;
             }
-        }.query("select max(ROWID) from cache");
-    }
-
-    void finalizeKey(long key, long length) {
-        execute("update cache set finalized = 1, file_size = ? WHERE rowId = ?", length, key);
+        }.query("SELECT " + ENTRY_COLUMNS + " FROM cache WHERE client_key = ? and finalized = 1", key);
     }
 
-    long getKey(String key) {
-        long k = new QueryHelper<Long>(-1L) {
+    @Override
+    public long getSizeSnapshot() {
+        return new QueryHelper<Long>(-1L) {
             @Override
             Long parse(Cursor cursor) {
                 if (cursor.moveToFirst()) {
@@ -64,14 +82,131 @@ class CacheDb {
                 }
                 return null;
             }
-        }.query("SELECT rowId FROM cache WHERE client_key = ? and finalized = 1", key);
-        if (k != -1) {
-            execute("UPDATE cache set last_used = ? WHERE client_key = ?", System.currentTimeMillis(), key);
+        }.query("SELECT value FROM meta WHERE name = 'total_size'");
+    }
+
+    @Override
+    public void saveSizeSnapshot(long totalSize) {
+        SQLiteStatement statement = statement(SAVE_SIZE);
+        statement.bindLong(1, totalSize);
+        statement.executeInsert();
+    }
+
+    @Override
+    public void beginTransaction() {
+        sqlHelper.getWritableDatabase().beginTransaction();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        sqlHelper.getWritableDatabase().setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        sqlHelper.getWritableDatabase().endTransaction();
+    }
+
+    /**
+     * The biggest rowId ever inserted is kept in the meta table, so the rowIds of deleted entries
+     * are never given out again, not even after a restart
+     */
+    @Override
+    public long getMaxRowId() {
+        return statement(MAX_ROW_ID).simpleQueryForLong();
+    }
+
+    @Override
+    public long insertKey(CacheIndex.Entry entry) {
+        SQLiteStatement delete = statement(DELETE_BY_KEY);
+        delete.bindString(1, entry.key);
+        delete.executeUpdateDelete();
+
+        SQLiteStatement insert = statement(INSERT);
+        insert.bindLong(1, entry.rowId);
+        insert.bindString(2, entry.key);
+        insert.bindLong(3, entry.size);
+        insert.bindLong(4, entry.lastUsed);
+        insert.bindLong(5, entry.lastUsed);
+        insert.bindLong(6, entry.rawSize);
+        insert.bindLong(7, entry.codec);
+        insert.bindLong(8, entry.slab);
+        insert.bindLong(9, entry.offset);
+        if (entry.hash != null) {
+            insert.bindString(10, entry.hash);
+        }
+        if (entry.checksum != CacheIndex.NO_CHECKSUM) {
+            insert.bindLong(11, entry.checksum);
+        }
+        long rowId = insert.executeInsert();
+
+        SQLiteStatement saveMaxRowId = statement(SAVE_MAX_ROW_ID);
+        saveMaxRowId.bindLong(1, getMaxRowId());
+        saveMaxRowId.executeInsert();
+        return rowId;
+    }
+
+    @Override
+    public void moveKey(long rowId, long slab, long offset) {
+        SQLiteStatement move = statement(MOVE);
+        move.bindLong(1, slab);
+        move.bindLong(2, offset);
+        move.bindLong(3, rowId);
+        move.executeUpdateDelete();
+    }
+
+    @Override
+    public void deleteKey(long rowId) {
+        SQLiteStatement delete = statement(DELETE_BY_ROW_ID);
+        delete.bindLong(1, rowId);
+        delete.executeUpdateDelete();
+    }
+
+    @Override
+    public List<CacheIndex.Entry> getFinalizedEntries() {
+        return new QueryHelper<List<CacheIndex.Entry>>(new ArrayList<>()) {
+            @Override
+            List<CacheIndex.Entry> parse(Cursor cursor) {
+                ArrayList<CacheIndex.Entry> list = new ArrayList<>();
+                while (cursor.moveToNext()) {
+                    list.add(toEntry(cursor));
+                }
+                return list;
+            }
+        }.query("SELECT " + ENTRY_COLUMNS + " FROM cache WHERE finalized = 1");
+    }
+
+    private static CacheIndex.Entry toEntry(Cursor cursor) {
+        CacheIndex.Entry entry = new CacheIndex.Entry(cursor.getString(1), cursor.getLong(0),
+                cursor.getLong(2), cursor.getLong(3), cursor.getLong(4), cursor.getInt(5), cursor.getString(8),
+                cursor.isNull(9) ? CacheIndex.NO_CHECKSUM : cursor.getLong(9));
+        entry.slab = cursor.getLong(6);
+        entry.offset = cursor.getLong(7);
+        return entry;
+    }
+
+    @Override
+    public void touch(Map<Long, Long> lastUsedByRowId) {
+        if (lastUsedByRowId.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = sqlHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement statement = statement(TOUCH);
+            for (Map.Entry<Long, Long> entry : lastUsedByRowId.entrySet()) {
+                statement.bindLong(1, entry.getValue());
+                statement.bindLong(2, entry.getKey());
+                statement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        return k;
     }
 
-    List<Integer> getCorruptedFiles() {
+    @Override
+    public List<Integer> getCorruptedFiles() {
         return new QueryHelper<List<Integer>>(new ArrayList<>()) {
             @Override
             List<Integer> parse(Cursor cursor) {
@@ -84,16 +219,17 @@ class CacheDb {
         }.query("SELECT ROWID from cache WHERE finalized = 0");
     }
 
-    void deleteKeys(List<Integer> cleanedKeys) {
+    @Override
+    public void deleteKeys(List<Integer> rowIds) {
         StringBuilder stringBuilder = new StringBuilder("DELETE from cache WHERE ROWID in (");
         boolean first = true;
-        for (int cleanedKey : cleanedKeys) {
+        for (int rowId : rowIds) {
             if (!first) {
                 stringBuilder.append(",");
             } else {
                 first = false;
             }
-            stringBuilder.append(cleanedKey);
+            stringBuilder.append(rowId);
         }
         stringBuilder.append(")");
         execute(stringBuilder.toString());
@@ -103,24 +239,43 @@ class CacheDb {
         sqlHelper.getWritableDatabase().execSQL(sql, bindArgs);
     }
 
-    List<Integer> getKeysToDelete(final long maxSize) {
+    @Override
+    public List<Integer> getOldestKeys(int limit, int offset) {
         return new QueryHelper<List<Integer>>(new ArrayList<>()) {
             @Override
             List<Integer> parse(Cursor cursor) {
                 ArrayList<Integer> list = new ArrayList<>();
-                long count = 0;
                 while (cursor.moveToNext()) {
-                    count += cursor.getLong(1);
-                    if (count > maxSize) {
-                        list.add(cursor.getInt(0));
-                    }
+                    list.add(cursor.getInt(0));
                 }
                 return list;
             }
-        }.query("SELECT ROWID, file_size from cache ORDER BY last_used desc");
+        }.query("SELECT ROWID from cache WHERE finalized = 1 ORDER BY last_used LIMIT ? OFFSET ?",
+                String.valueOf(limit), String.valueOf(offset));
     }
 
-    void close() {
+    /**
+     * Returns the pre-compiled statement, compiling it on first use. Statements are
+     * reused by the cache thread only.
+     */
+    private SQLiteStatement statement(int id) {
+        SQLiteStatement statement = statements[id];
+        if (statement == null) {
+            statement = sqlHelper.getWritableDatabase().compileStatement(STATEMENTS[id]);
+            statements[id] = statement;
+        }
+        statement.clearBindings();
+        return statement;
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < statements.length; i++) {
+            if (statements[i] != null) {
+                statements[i].close();
+                statements[i] = null;
+            }
+        }
         sqlHelper.close();
     }
 
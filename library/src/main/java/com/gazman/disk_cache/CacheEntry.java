@@ -0,0 +1,218 @@
+package com.gazman.disk_cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An open, read only view of a cache entry. The entry is pinned while the view is open: it will
+ * not be evicted, and put or delete of the same key will not change the bytes seen through it.
+ * Always close it once done, closing it also closes all the streams opened from it.
+ * <p>
+ * The streams return the decoded content of the entry, the channel and the mapped buffer
+ * give access to the stored bytes. Small entries may be packed with other entries in a shared file,
+ * their stored bytes start at {@link #getOffset()} of the channel.
+ * <p>
+ * When the entry is verified, see {@link Verification}, the streams check its checksum as they are
+ * read and the read that reaches the end of a corrupted entry throws an IOException. Streams that
+ * skip or reset, the channel and the mapped buffer are not verified.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CacheEntry implements Closeable {
+    private final String key;
+    private final CacheIndex.Entry entry;
+    private final RandomAccessFile file;
+    private final Codec codec;
+    private final long offset;
+    private final long length;
+    private final Runnable onCorrupted;
+    private boolean closed;
+
+    /**
+     * @param file        file of the entry or the slab it is packed in
+     * @param offset      where the entry starts in the file
+     * @param onCorrupted called when a stream finds a checksum mismatch, null skips the verification
+     */
+    CacheEntry(String key, CacheIndex.Entry entry, File file, long offset, Codec codec, Runnable onCorrupted)
+            throws IOException {
+        this.key = key;
+        this.entry = entry;
+        this.codec = codec;
+        this.offset = offset;
+        this.onCorrupted = entry.checksum != CacheIndex.NO_CHECKSUM ? onCorrupted : null;
+        this.file = new RandomAccessFile(file, "r");
+        length = entry.size;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return stored entry size in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return entry size in bytes before it was encoded
+     */
+    public long getRawLength() {
+        return entry.rawSize;
+    }
+
+    /**
+     * @return the codec the entry was encoded with
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Returns a new stream over the decoded entry, starting at the first byte. Each stream keeps its own
+     * position so several streams may be read at the same time.
+     */
+    public InputStream getInputStream() throws IOException {
+        return codec.decode(new EntryInputStream(this, false));
+    }
+
+    /**
+     * @return position of the first stored byte of the entry in its channel
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the channel of the entry. The channel is shared by all the callers, use the positioned
+     * read(ByteBuffer, long) and transferTo methods when reading from more than one thread.
+     * The channel will be closed together with this entry.
+     */
+    public FileChannel getChannel() {
+        return file.getChannel();
+    }
+
+    /**
+     * Maps the whole entry into memory as a read only buffer. The buffer stays valid after
+     * the entry is closed, but the entry is only protected from eviction while it is open.
+     */
+    public MappedByteBuffer map() throws IOException {
+        return file.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        entry.pins.decrementAndGet();
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    InputStream openOwningStream() throws IOException {
+        return codec.decode(new EntryInputStream(this, true));
+    }
+
+    private static class EntryInputStream extends InputStream {
+        private final CacheEntry cacheEntry;
+        private final boolean ownsEntry;
+        private long position;
+        private long mark;
+        /**
+         * Checksum of the bytes read so far, null once the stream is not read in order
+         */
+        private Crc32c checksum;
+
+        EntryInputStream(CacheEntry cacheEntry, boolean ownsEntry) {
+            this.cacheEntry = cacheEntry;
+            this.ownsEntry = ownsEntry;
+            checksum = cacheEntry.onCorrupted != null ? new Crc32c() : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= cacheEntry.length) {
+                return -1;
+            }
+            int count = cacheEntry.getChannel().read(ByteBuffer.wrap(b, off,
+                    (int) Math.min(len, cacheEntry.length - position)), cacheEntry.offset + position);
+            if (count > 0) {
+                position += count;
+                if (checksum != null) {
+                    checksum.update(b, off, count);
+                    if (position == cacheEntry.length) {
+                        verify();
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, cacheEntry.length - position));
+            position += skipped;
+            checksum = null;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, cacheEntry.length - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+            checksum = null;
+        }
+
+        private void verify() throws IOException {
+            long value = checksum.getValue();
+            checksum = null;
+            if (value != cacheEntry.entry.checksum) {
+                cacheEntry.onCorrupted.run();
+                throw new IOException("Checksum mismatch of entry " + cacheEntry.key);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (ownsEntry) {
+                cacheEntry.close();
+            }
+        }
+    }
+}
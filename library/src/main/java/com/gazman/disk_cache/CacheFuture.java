@@ -0,0 +1,133 @@
+package com.gazman.disk_cache;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous cache operation. It is completed on the cache threads, so blocking on
+ * {@link #get()} or adding a listener with a direct executor never hops through the main thread.
+ * <p>
+ * Cancelling only completes the future, the operation itself still runs.
+ *
+ * @param <T> result type
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CacheFuture<T> implements Future<T> {
+    private ArrayList<Runnable> listeners = new ArrayList<>(1);
+    private boolean done;
+    private boolean cancelled;
+    private T result;
+    private Throwable error;
+
+    /**
+     * Calls the listener on the given executor once the future is complete, right away if it is
+     * already complete
+     *
+     * @param executor where to call the listener, {@code Runnable::run} calls it on the completing thread
+     */
+    public void addListener(final Listener<? super T> listener, final Executor executor) {
+        Runnable notification = () -> executor.execute(() -> listener.onComplete(result, error));
+        synchronized (this) {
+            if (!done) {
+                listeners.add(notification);
+                return;
+            }
+        }
+        notification.run();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    boolean complete(T result) {
+        return finish(result, null, false);
+    }
+
+    boolean completeExceptionally(Throwable error) {
+        return finish(null, error, false);
+    }
+
+    private T getResult() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) error;
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    /**
+     * @return false if the future was already complete
+     */
+    private boolean finish(T result, Throwable error, boolean cancelled) {
+        ArrayList<Runnable> notifications;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.result = result;
+            this.error = error;
+            this.cancelled = cancelled;
+            done = true;
+            notifyAll();
+            notifications = listeners;
+            listeners = null;
+        }
+        for (Runnable notification : notifications) {
+            notification.run();
+        }
+        return true;
+    }
+
+    /**
+     * Listener of the future result
+     */
+    public interface Listener<T> {
+
+        /**
+         * @param result the result, null if the operation failed
+         * @param error  the failure or null if the operation succeeded
+         */
+        void onComplete(T result, Throwable error);
+    }
+}
@@ -0,0 +1,185 @@
+package com.gazman.disk_cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory mirror of the finalized rows of the journal, used to answer lookups without
+ * touching SQLite. It must be kept in sync with every put, delete and eviction.
+ * <p>
+ * Lookups are lock free and safe from any thread. Until the index is loaded it only holds the
+ * entries that were already looked up in the journal.
+ * <p>
+ * Deduplicated entries that share a blob are counted once in the total size.
+ */
+class CacheIndex {
+    static final long NO_CHECKSUM = -1;
+    private final ConcurrentHashMap<String, Entry> byKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Entry> byRowId = new ConcurrentHashMap<>();
+    private final HashMap<String, Integer> blobReferences = new HashMap<>();
+    private volatile long totalSize;
+    private volatile boolean loaded;
+
+    /**
+     * Adds all the journal entries, keeping the ones that were already added
+     */
+    synchronized void load(List<Entry> entries) {
+        for (Entry entry : entries) {
+            putIfAbsent(entry);
+        }
+        loaded = true;
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    Entry get(String key) {
+        return byKey.get(key);
+    }
+
+    Entry get(long rowId) {
+        return byRowId.get(rowId);
+    }
+
+    /**
+     * @return the entry that is already indexed under this key or the given entry once added
+     */
+    synchronized Entry putIfAbsent(Entry entry) {
+        Entry existing = byKey.get(entry.key);
+        if (existing != null) {
+            return existing;
+        }
+        put(entry);
+        return entry;
+    }
+
+    synchronized void put(Entry entry) {
+        remove(entry.key);
+        byKey.put(entry.key, entry);
+        byRowId.put(entry.rowId, entry);
+        if (entry.hash == null || addReference(entry.hash, 1) == 1) {
+            totalSize += entry.size;
+        }
+    }
+
+    synchronized Entry remove(String key) {
+        Entry entry = byKey.remove(key);
+        if (entry != null) {
+            byRowId.remove(entry.rowId);
+            if (entry.hash == null || addReference(entry.hash, -1) == 0) {
+                totalSize -= entry.size;
+            }
+        }
+        return entry;
+    }
+
+    synchronized Entry remove(long rowId) {
+        Entry entry = byRowId.get(rowId);
+        return entry != null ? remove(entry.key) : null;
+    }
+
+    /**
+     * @return number of indexed entries that point to the blob
+     */
+    synchronized int getReferences(String hash) {
+        Integer references = blobReferences.get(hash);
+        return references != null ? references : 0;
+    }
+
+    private int addReference(String hash, int delta) {
+        int references = getReferences(hash) + delta;
+        if (references > 0) {
+            blobReferences.put(hash, references);
+        } else {
+            blobReferences.remove(hash);
+        }
+        return references;
+    }
+
+    Collection<Entry> entries() {
+        return byKey.values();
+    }
+
+    int size() {
+        return byKey.size();
+    }
+
+    long getTotalSize() {
+        return totalSize;
+    }
+
+    synchronized void clear() {
+        byKey.clear();
+        byRowId.clear();
+        blobReferences.clear();
+        totalSize = 0;
+    }
+
+    static class Entry {
+        final String key;
+        final long rowId;
+        /**
+         * Stored size, what the entry takes on disk
+         */
+        final long size;
+        /**
+         * Size before the entry was encoded
+         */
+        final long rawSize;
+        /**
+         * Id of the {@link Codec} the entry was encoded with
+         */
+        final int codec;
+        /**
+         * Hash of the blob a deduplicated entry points to or null, see {@link BlobStore}
+         */
+        final String hash;
+        /**
+         * CRC32C of the stored bytes or {@link #NO_CHECKSUM} if it was not computed, see {@link Verification}
+         */
+        final long checksum;
+        /**
+         * Slab of a packed entry or 0 if the entry has its own file, see {@link SlabStore}.
+         * The location changes when the slab is compacted, it is read under the key lock.
+         */
+        volatile long slab;
+        volatile long offset;
+        volatile long lastUsed;
+        /**
+         * Number of open {@link CacheEntry} views, pinned entries are not evicted
+         */
+        final AtomicInteger pins = new AtomicInteger();
+
+        Entry(String key, long rowId, long size, long lastUsed) {
+            this(key, rowId, size, lastUsed, size, Codec.NONE.getId());
+        }
+
+        Entry(String key, long rowId, long size, long lastUsed, long rawSize, int codec) {
+            this(key, rowId, size, lastUsed, rawSize, codec, null);
+        }
+
+        Entry(String key, long rowId, long size, long lastUsed, long rawSize, int codec, String hash) {
+            this(key, rowId, size, lastUsed, rawSize, codec, hash, NO_CHECKSUM);
+        }
+
+        Entry(String key, long rowId, long size, long lastUsed, long rawSize, int codec, String hash,
+              long checksum) {
+            this.key = key;
+            this.rowId = rowId;
+            this.size = size;
+            this.lastUsed = lastUsed;
+            this.rawSize = rawSize;
+            this.codec = codec;
+            this.hash = hash;
+            this.checksum = checksum;
+        }
+
+        boolean isPinned() {
+            return pins.get() > 0;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.gazman.disk_cache;
+
+/**
+ * Snapshot of the cache statistics, counted since the cache was created
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CacheStats {
+    private final long hitCount;
+    private final long missCount;
+    private final long putCount;
+    private final long evictionCount;
+    private final long bytesWritten;
+    private final long bytesRead;
+    private final long bytesEvicted;
+    private final long corruptionCount;
+    private final long totalSize;
+    private final long maxSize;
+    private final int writeQueueDepth;
+    private final int readQueueDepth;
+    private final Histogram putLatency;
+    private final Histogram getLatency;
+    private final Histogram parseLatency;
+    private final Histogram journalLatency;
+
+    CacheStats(StatsRecorder recorder, long totalSize, long maxSize, int writeQueueDepth, int readQueueDepth) {
+        hitCount = recorder.get(StatsRecorder.HITS);
+        missCount = recorder.get(StatsRecorder.MISSES);
+        putCount = recorder.get(StatsRecorder.PUTS);
+        evictionCount = recorder.get(StatsRecorder.EVICTIONS);
+        bytesWritten = recorder.get(StatsRecorder.BYTES_WRITTEN);
+        bytesRead = recorder.get(StatsRecorder.BYTES_READ);
+        bytesEvicted = recorder.get(StatsRecorder.BYTES_EVICTED);
+        corruptionCount = recorder.get(StatsRecorder.CORRUPTIONS);
+        this.totalSize = totalSize;
+        this.maxSize = maxSize;
+        this.writeQueueDepth = writeQueueDepth;
+        this.readQueueDepth = readQueueDepth;
+        putLatency = new Histogram(recorder.getBuckets(StatsRecorder.PUT_LATENCY));
+        getLatency = new Histogram(recorder.getBuckets(StatsRecorder.GET_LATENCY));
+        parseLatency = new Histogram(recorder.getBuckets(StatsRecorder.PARSE_LATENCY));
+        journalLatency = new Histogram(recorder.getBuckets(StatsRecorder.JOURNAL_LATENCY));
+    }
+
+    /**
+     * @return number of reads that found their entry
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of reads that did not find their entry
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return hits out of all the reads, or 0 if there were no reads
+     */
+    public double getHitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 0 : (double) hitCount / requests;
+    }
+
+    /**
+     * @return number of committed entries
+     */
+    public long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * @return number of entries removed to free space
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return stored bytes of the committed entries
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return stored bytes of the entries that were found by reads
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return stored bytes of the evicted entries
+     */
+    public long getBytesEvicted() {
+        return bytesEvicted;
+    }
+
+    /**
+     * @return number of entries that failed checksum verification and were quarantined
+     */
+    public long getCorruptionCount() {
+        return corruptionCount;
+    }
+
+    /**
+     * @return stored bytes of all the entries
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return number of writes and maintenance tasks waiting for the cache thread, including
+     * scheduled maintenance that is not due yet
+     */
+    public int getWriteQueueDepth() {
+        return writeQueueDepth;
+    }
+
+    /**
+     * @return number of reads waiting for a reader thread
+     */
+    public int getReadQueueDepth() {
+        return readQueueDepth;
+    }
+
+    /**
+     * @return time to save and commit a put, or a putAll batch
+     */
+    public Histogram getPutLatency() {
+        return putLatency;
+    }
+
+    /**
+     * @return time from calling a read until its result is ready, including the wait in the queue
+     */
+    public Histogram getGetLatency() {
+        return getLatency;
+    }
+
+    /**
+     * @return time spent in {@link VIF.ParserCallback#parse(java.io.File)}
+     */
+    public Histogram getParseLatency() {
+        return parseLatency;
+    }
+
+    /**
+     * @return time of the journal writes: commits, deletes and recency updates
+     */
+    public Histogram getJournalLatency() {
+        return journalLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hitCount +
+                ", misses=" + missCount +
+                ", puts=" + putCount +
+                ", evictions=" + evictionCount +
+                ", bytesWritten=" + bytesWritten +
+                ", bytesRead=" + bytesRead +
+                ", bytesEvicted=" + bytesEvicted +
+                ", corruptions=" + corruptionCount +
+                ", totalSize=" + totalSize +
+                ", maxSize=" + maxSize +
+                ", writeQueueDepth=" + writeQueueDepth +
+                ", readQueueDepth=" + readQueueDepth +
+                ", putLatency=" + putLatency +
+                ", getLatency=" + getLatency +
+                ", parseLatency=" + parseLatency +
+                ", journalLatency=" + journalLatency +
+                "}";
+    }
+
+    /**
+     * Latency histogram with power of two buckets, bucket i counts latencies from 2^i
+     * up to 2^(i+1) microseconds
+     */
+    public static class Histogram {
+        private final long[] buckets;
+        private final long count;
+
+        Histogram(long[] buckets) {
+            this.buckets = buckets;
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            this.count = count;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return upper bound of the bucket that holds the percentile in microseconds,
+         * or 0 if nothing was recorded
+         */
+        public long getPercentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * Math.max(0, Math.min(percentile, 100)) / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << (i + 1);
+                }
+            }
+            return 1L << buckets.length;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + count + ", p50=" + getPercentileMicros(50) + "us, p99=" +
+                    getPercentileMicros(99) + "us}";
+        }
+    }
+}
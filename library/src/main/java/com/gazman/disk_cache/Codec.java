@@ -0,0 +1,69 @@
+package com.gazman.disk_cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encoding applied to the entries while they are written and reversed when they are read.
+ * The id of the codec is kept in the journal with each entry, so it must never change.
+ */
+public interface Codec {
+
+    /**
+     * Entries are stored as is
+     */
+    Codec NONE = new Codec() {
+        @Override
+        public int getId() {
+            return 0;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream outputStream) {
+            return outputStream;
+        }
+
+        @Override
+        public InputStream decode(InputStream inputStream) {
+            return inputStream;
+        }
+    };
+
+    /**
+     * Entries are compressed with Deflate, a good fit for text formats like JSON
+     */
+    Codec DEFLATE = new Codec() {
+        @Override
+        public int getId() {
+            return 1;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream outputStream) {
+            return new DeflaterOutputStream(outputStream);
+        }
+
+        @Override
+        public InputStream decode(InputStream inputStream) {
+            return new InflaterInputStream(inputStream);
+        }
+    };
+
+    /**
+     * @return unique id of this codec, ids below 100 are reserved for the built in codecs
+     */
+    int getId();
+
+    /**
+     * @return a stream that encodes into the given stream and closes it when closed
+     */
+    OutputStream encode(OutputStream outputStream) throws IOException;
+
+    /**
+     * @return a stream that decodes the given stream and closes it when closed
+     */
+    InputStream decode(InputStream inputStream) throws IOException;
+}
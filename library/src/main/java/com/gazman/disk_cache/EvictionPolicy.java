@@ -0,0 +1,54 @@
+package com.gazman.disk_cache;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Decides which entries are evicted once the cache grows beyond maxSize. The default policy evicts
+ * the least recently used entries, {@link TinyLfuPolicy} also takes the access frequency into account.
+ * <p>
+ * All the methods are called from the cache thread, except {@link #onAccess(long, String)} that is
+ * called from the reader threads.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called once on startup, before any other method
+     *
+     * @param stateFile file the policy may keep its state in between sessions
+     * @param capacity  size in bytes the cache is trimmed down to when it grows beyond maxSize
+     */
+    void open(File stateFile, long capacity);
+
+    /**
+     * Called on startup for each entry of the previous sessions, least recently used first
+     */
+    void onRestore(long rowId, String key, long size);
+
+    /**
+     * Called once a put is committed, a replaced entry is removed first
+     */
+    void onAdd(long rowId, String key, long size);
+
+    /**
+     * Called on each cache hit
+     */
+    void onAccess(long rowId, String key);
+
+    /**
+     * Called once an entry is deleted, evicted or replaced
+     */
+    void onRemove(long rowId);
+
+    /**
+     * @param limit maximum number of rowIds to return
+     * @param skip  number of victims to skip, the cache skips the entries that are in use
+     * @return rowIds of the entries that should be evicted, in eviction order
+     */
+    List<Long> getVictims(int limit, int skip);
+
+    /**
+     * Persists the state, called after each eviction pass and on shutdown
+     */
+    void save(File stateFile);
+}
@@ -0,0 +1,161 @@
+package com.gazman.disk_cache;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Maps rowIds to entry files. Entries are spread over levels of hex sub directories, derived from
+ * the low bytes of the rowId, so no single directory grows too big. With 2 levels rowId 0x1A2B3
+ * is stored at b3/a2/107187.vif, with 0 levels all the entries are kept flat in the cache dir.
+ * <p>
+ * The levels are recorded in the layout file of the cache dir, caches created with other levels
+ * are migrated once on startup.
+ */
+class FileLayout {
+    static final int DEFAULT_LEVELS = 2;
+    static final int MAX_LEVELS = 3;
+    private static final String LAYOUT_FILE = "layout";
+    private static final String ENTRY_SUFFIX = ".vif";
+
+    private final int levels;
+
+    FileLayout(int levels) {
+        this.levels = levels;
+    }
+
+    int getLevels() {
+        return levels;
+    }
+
+    File toFile(File root, long rowId) {
+        File dir = root;
+        for (int i = 0; i < levels; i++) {
+            dir = new File(dir, toHex((int) (rowId >>> (8 * i)) & 0xff));
+        }
+        return new File(dir, rowId + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Creates the parent directory of the file if needed
+     */
+    static void ensureParent(File file) {
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            Log.e("VIF", "Error creating " + parent);
+        }
+    }
+
+    /**
+     * @return the levels of the existing cache or -1 if there is no layout file yet,
+     * caches created before the layout file was introduced are flat
+     */
+    static int readLevels(File root) {
+        File file = new File(root, LAYOUT_FILE);
+        if (!file.exists()) {
+            return -1;
+        }
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            int levels = inputStream.read();
+            return levels >= 0 && levels <= MAX_LEVELS ? levels : 0;
+        } catch (IOException e) {
+            Log.e("VIF", "Error reading " + file, e);
+            return 0;
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    void writeLevels(File root) {
+        File file = new File(root, LAYOUT_FILE);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(file, false);
+            outputStream.write(levels);
+        } catch (IOException e) {
+            Log.e("VIF", "Error writing " + file, e);
+        } finally {
+            close(outputStream);
+        }
+    }
+
+    /**
+     * Moves the files of the given rows from the old layout into this one.
+     * Rows that were already moved are skipped, so an interrupted migration can be resumed.
+     */
+    void migrate(File root, FileLayout oldLayout, Iterable<Long> rowIds) {
+        for (long rowId : rowIds) {
+            File oldFile = oldLayout.toFile(root, rowId);
+            if (!oldFile.exists()) {
+                continue;
+            }
+            File newFile = toFile(root, rowId);
+            ensureParent(newFile);
+            if (!oldFile.renameTo(newFile)) {
+                Log.e("VIF", "Error moving " + oldFile + " to " + newFile);
+            }
+        }
+    }
+
+    /**
+     * Deletes the entry files that no index entry points to, left over from a crash between moving
+     * a file in place and committing its entry. The journal never gives out the rowId of such a file
+     * again, so nothing else removes them.
+     */
+    void removeUnreferenced(File root, CacheIndex index) {
+        removeUnreferenced(root, index, levels);
+    }
+
+    private void removeUnreferenced(File dir, CacheIndex index, int depth) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (depth > 0) {
+                if (file.isDirectory() && file.getName().length() == 2) {
+                    removeUnreferenced(file, index, depth - 1);
+                }
+                continue;
+            }
+            long rowId = toRowId(file.getName());
+            if (rowId >= 0 && index.get(rowId) == null && !file.delete()) {
+                Log.e("VIF", "Error removing orphan file " + file);
+            }
+        }
+    }
+
+    /**
+     * @return the rowId of an entry file name or -1 if it's not an entry file
+     */
+    private static long toRowId(String name) {
+        if (!name.endsWith(ENTRY_SUFFIX) || name.length() == ENTRY_SUFFIX.length()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - ENTRY_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String toHex(int value) {
+        return value < 0x10 ? "0" + Integer.toHexString(value) : Integer.toHexString(value);
+    }
+}
@@ -0,0 +1,148 @@
+package com.gazman.disk_cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A put that was submitted but not committed yet. Readers of its key get a tailing stream of
+ * the temp file, that serves the bytes as soon as they are written, blocks for more until the put
+ * is committed and fails if the put is aborted.
+ * <p>
+ * The temp file is read through a channel that is opened once the writing starts and closed once
+ * the put is done and all the streams are closed, so the streams keep working after the temp file
+ * is moved in place or packed.
+ */
+class InFlightWrite {
+    private static final int QUEUED = 0;
+    private static final int WRITING = 1;
+    private static final int COMMITTED = 2;
+    private static final int ABORTED = 3;
+
+    final String key;
+    final Codec codec;
+    private int state = QUEUED;
+    private FileChannel channel;
+    private long written;
+    private int references = 1;
+
+    InFlightWrite(String key, Codec codec) {
+        this.key = key;
+        this.codec = codec;
+    }
+
+    /**
+     * Called by the writer once the temp file is created
+     */
+    synchronized void start(File file) throws IOException {
+        channel = new FileInputStream(file).getChannel();
+        state = WRITING;
+        notifyAll();
+    }
+
+    /**
+     * Called by the writer as the stored bytes are written
+     */
+    synchronized void setWritten(long written) {
+        this.written = written;
+        notifyAll();
+    }
+
+    /**
+     * Called by the writer once the put is committed or failed, releases the writer reference
+     */
+    synchronized void finish(boolean committed) {
+        state = committed ? COMMITTED : ABORTED;
+        notifyAll();
+        release();
+    }
+
+    /**
+     * @return a stream of the stored bytes or null if the put is already done
+     */
+    synchronized InputStream openStream() {
+        if (state >= COMMITTED) {
+            return null;
+        }
+        references++;
+        return new TailingInputStream();
+    }
+
+    /**
+     * Waits until the byte at the given position is written or the put is done
+     *
+     * @return number of bytes that can be read from the position, 0 at the end of a committed put
+     */
+    private synchronized long await(long position) throws IOException {
+        while (state < COMMITTED && position >= written) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + key);
+            }
+        }
+        if (state == ABORTED) {
+            throw new IOException("Put of " + key + " was aborted");
+        }
+        return Math.max(0, written - position);
+    }
+
+    private synchronized void release() {
+        references--;
+        if (references == 0 && channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    private synchronized FileChannel getChannel() {
+        return channel;
+    }
+
+    private class TailingInputStream extends InputStream {
+        private long position;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            long available = await(position);
+            if (available == 0) {
+                return -1;
+            }
+            int count = getChannel().read(ByteBuffer.wrap(b, off, (int) Math.min(len, available)), position);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.gazman.disk_cache;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durable record of the cache entries: key to rowId, size and recency. The in memory index is
+ * restored from it on startup. All the writes are done from the cache thread.
+ * <p>
+ * {@link CacheDb} keeps it in SQLite, {@link LogJournal} in an append only file that works on any JVM.
+ */
+interface Journal {
+
+    /**
+     * @return all the committed entries
+     */
+    List<CacheIndex.Entry> getFinalizedEntries();
+
+    /**
+     * @return rowIds of entries that were never committed, their files should be removed
+     */
+    List<Integer> getCorruptedFiles();
+
+    /**
+     * @return the committed entry of this key or null
+     */
+    CacheIndex.Entry getEntry(String key);
+
+    long getTotalSize();
+
+    /**
+     * @return the total size saved by {@link #saveSizeSnapshot(long)} or -1 if it was never saved
+     */
+    long getSizeSnapshot();
+
+    /**
+     * Persists the total size, so it is known on the next start before all the entries are loaded
+     */
+    void saveSizeSnapshot(long totalSize);
+
+    /**
+     * @return the biggest rowId ever used, including the rowIds of deleted entries, new entries get
+     * rowIds above it, so a rowId is never reused
+     */
+    long getMaxRowId();
+
+    void beginTransaction();
+
+    void setTransactionSuccessful();
+
+    /**
+     * Commits the transaction if it was marked successful, otherwise rolls it back
+     */
+    void endTransaction();
+
+    /**
+     * Replaces the entry of the given key with a new one. Callers pass a fresh rowId,
+     * above {@link #getMaxRowId()}, so a rolled back transaction will never leave the old entry
+     * pointing to a new file. The last used time of the entry is also its creation time.
+     * Should be called inside a transaction.
+     *
+     * @return the rowId of the inserted entry
+     */
+    long insertKey(CacheIndex.Entry entry);
+
+    /**
+     * Updates the location of a packed entry, slab 0 means the entry was moved into its own file
+     */
+    void moveKey(long rowId, long slab, long offset);
+
+    void deleteKey(long rowId);
+
+    void deleteKeys(List<Integer> rowIds);
+
+    /**
+     * Updates last used time of many entries at once
+     */
+    void touch(Map<Long, Long> lastUsedByRowId);
+
+    /**
+     * Returns the least recently used entries, oldest first
+     *
+     * @param limit  maximum number of rowIds to return
+     * @param offset number of oldest entries to skip
+     */
+    List<Integer> getOldestKeys(int limit, int offset);
+
+    void close();
+}
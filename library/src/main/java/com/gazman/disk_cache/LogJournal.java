@@ -0,0 +1,773 @@
+package com.gazman.disk_cache;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Journal kept in an append only log, it has no Android dependencies so the cache can run on a plain JVM.
+ * <p>
+ * Each commit is appended to the log as a frame of records, prefixed by its length and CRC32. Commits
+ * that do not fit the frame size limit are split into several frames, each record stands on its own,
+ * so a crash between them leaves a valid journal. On startup the latest snapshot is loaded and its log
+ * is replayed on top of it, a torn frame at the end of the log is cut off. Once the log holds many more records than there are live entries, the
+ * entries are compacted into a new snapshot and a new log is started. The biggest rowId is saved aside
+ * on compaction, as the snapshot no longer holds the deleted entries, so rowIds are never reused. Encoded entries are logged as
+ * PUT_ENCODED records, that also hold the codec and the raw size, packed entries as PUT_PACKED
+ * records, that also hold their slab location, and deduplicated entries as PUT_BLOB records, that
+ * also hold the hash of their blob. Put records of entries with a checksum have the CHECKSUM_FLAG bit
+ * set in their type and end with the checksum. Frames are not synced to disk
+ * on every commit, after a crash the last few commits may be lost.
+ */
+class LogJournal implements Journal {
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte TOUCH = 3;
+    private static final byte PUT_ENCODED = 4;
+    private static final byte PUT_PACKED = 5;
+    private static final byte MOVE = 6;
+    private static final byte PUT_BLOB = 7;
+    private static final byte CHECKSUM_FLAG = 0x40;
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String SIZE_FILE = "size";
+    private static final String MAX_ROW_ID_FILE = "max_row_id";
+    private static final String LOG_SUFFIX = ".log";
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+    private static final int SNAPSHOT_FRAME_RECORDS = 1024;
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final Comparator<Row> LAST_USED_ORDER = (a, b) -> {
+        if (a.lastUsed != b.lastUsed) {
+            return a.lastUsed < b.lastUsed ? -1 : 1;
+        }
+        return a.rowId < b.rowId ? -1 : (a.rowId == b.rowId ? 0 : 1);
+    };
+
+    private final File dir;
+    private final HashMap<Long, Row> rows = new HashMap<>();
+    private final HashMap<String, Row> rowsByKey = new HashMap<>();
+    private final TreeSet<Row> rowsByLastUsed = new TreeSet<>(LAST_USED_ORDER);
+    private boolean loaded;
+    private long generation;
+    private long maxRowId;
+    private long totalSize;
+    private int logRecords;
+    private FileOutputStream log;
+
+    private final ArrayList<Record> transaction = new ArrayList<>();
+    private int transactionDepth;
+    private boolean levelSuccessful;
+    private boolean transactionFailed;
+
+    /**
+     * @param dir directory of the journal files, it will be created if needed
+     */
+    LogJournal(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public synchronized List<CacheIndex.Entry> getFinalizedEntries() {
+        ensureLoaded();
+        ArrayList<CacheIndex.Entry> entries = new ArrayList<>(rows.size());
+        for (Row row : rows.values()) {
+            entries.add(toEntry(row));
+        }
+        return entries;
+    }
+
+    /**
+     * Only committed entries are logged, so there are never corrupted entries
+     */
+    @Override
+    public List<Integer> getCorruptedFiles() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public synchronized CacheIndex.Entry getEntry(String key) {
+        ensureLoaded();
+        Row row = rowsByKey.get(key);
+        return row != null ? toEntry(row) : null;
+    }
+
+    private static CacheIndex.Entry toEntry(Row row) {
+        CacheIndex.Entry entry = new CacheIndex.Entry(row.key, row.rowId, row.size, row.lastUsed,
+                row.rawSize, row.codec, row.hash, row.checksum);
+        entry.slab = row.slab;
+        entry.offset = row.offset;
+        return entry;
+    }
+
+    /**
+     * Kept in its own file, so it can be read without replaying the log
+     */
+    @Override
+    public long getSizeSnapshot() {
+        File file = new File(dir, SIZE_FILE);
+        if (!file.exists()) {
+            return -1;
+        }
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new FileInputStream(file));
+            return inputStream.readLong();
+        } catch (IOException e) {
+            Log.e("VIF", "Error reading " + file, e);
+            return -1;
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    @Override
+    public void saveSizeSnapshot(long totalSize) {
+        File file = new File(dir, SIZE_FILE);
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new FileOutputStream(file, false));
+            outputStream.writeLong(totalSize);
+        } catch (IOException e) {
+            Log.e("VIF", "Error writing " + file, e);
+        } finally {
+            close(outputStream);
+        }
+    }
+
+    @Override
+    public synchronized long getTotalSize() {
+        ensureLoaded();
+        return totalSize;
+    }
+
+    @Override
+    public synchronized long getMaxRowId() {
+        ensureLoaded();
+        long max = maxRowId;
+        for (Record record : transaction) {
+            max = Math.max(max, record.rowId);
+        }
+        return max;
+    }
+
+    @Override
+    public synchronized void beginTransaction() {
+        if (transactionDepth++ == 0) {
+            transactionFailed = false;
+        }
+        levelSuccessful = false;
+    }
+
+    @Override
+    public synchronized void setTransactionSuccessful() {
+        levelSuccessful = true;
+    }
+
+    /**
+     * Same as in SQLite, nested transactions are committed together with the outer one and
+     * any level that was not marked successful rolls back the whole transaction
+     */
+    @Override
+    public synchronized void endTransaction() {
+        if (!levelSuccessful) {
+            transactionFailed = true;
+        }
+        levelSuccessful = transactionDepth > 1;
+        if (--transactionDepth > 0) {
+            return;
+        }
+        ArrayList<Record> records = new ArrayList<>(transaction);
+        transaction.clear();
+        if (!transactionFailed) {
+            commit(records);
+        }
+    }
+
+    @Override
+    public synchronized long insertKey(CacheIndex.Entry entry) {
+        Record record = new Record(putType(entry.codec, entry.slab, entry.hash), entry.rowId);
+        record.key = entry.key;
+        record.size = entry.size;
+        record.rawSize = entry.rawSize;
+        record.codec = entry.codec;
+        record.slab = entry.slab;
+        record.offset = entry.offset;
+        record.hash = entry.hash;
+        record.checksum = entry.checksum;
+        record.lastUsed = entry.lastUsed;
+        record.createdOn = entry.lastUsed;
+        add(record);
+        return entry.rowId;
+    }
+
+    @Override
+    public synchronized void moveKey(long rowId, long slab, long offset) {
+        Record record = new Record(MOVE, rowId);
+        record.slab = slab;
+        record.offset = offset;
+        add(record);
+    }
+
+    /**
+     * @return the smallest record type that can hold the entry
+     */
+    private static byte putType(int codec, long slab, String hash) {
+        if (slab != 0) {
+            return PUT_PACKED;
+        }
+        if (hash != null) {
+            return PUT_BLOB;
+        }
+        return codec == Codec.NONE.getId() ? PUT : PUT_ENCODED;
+    }
+
+    @Override
+    public synchronized void deleteKey(long rowId) {
+        add(new Record(DELETE, rowId));
+    }
+
+    @Override
+    public synchronized void deleteKeys(List<Integer> rowIds) {
+        beginTransaction();
+        try {
+            for (int rowId : rowIds) {
+                add(new Record(DELETE, rowId));
+            }
+            setTransactionSuccessful();
+        } finally {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized void touch(Map<Long, Long> lastUsedByRowId) {
+        beginTransaction();
+        try {
+            for (Map.Entry<Long, Long> entry : lastUsedByRowId.entrySet()) {
+                Record record = new Record(TOUCH, entry.getKey());
+                record.lastUsed = entry.getValue();
+                add(record);
+            }
+            setTransactionSuccessful();
+        } finally {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized List<Integer> getOldestKeys(int limit, int offset) {
+        ensureLoaded();
+        ArrayList<Integer> keys = new ArrayList<>(limit);
+        int skipped = 0;
+        for (Row row : rowsByLastUsed) {
+            if (keys.size() == limit) {
+                break;
+            }
+            if (skipped++ >= offset) {
+                keys.add((int) row.rowId);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public synchronized void close() {
+        close(log);
+        log = null;
+        loaded = false;
+        totalSize = 0;
+        maxRowId = 0;
+        rows.clear();
+        rowsByKey.clear();
+        rowsByLastUsed.clear();
+    }
+
+    private void add(Record record) {
+        ensureLoaded();
+        if (transactionDepth > 0) {
+            transaction.add(record);
+        } else {
+            commit(Collections.singletonList(record));
+        }
+    }
+
+    /**
+     * Appends the records to the log and applies them, a record that does not fit into a frame
+     * fails the whole commit
+     */
+    private void commit(List<Record> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            log.write(toFrames(records));
+        } catch (IOException e) {
+            throw new IllegalStateException("Error writing journal " + dir, e);
+        }
+        for (Record record : records) {
+            apply(record);
+        }
+        logRecords += records.size();
+        if (logRecords > MIN_COMPACTION_RECORDS && logRecords > rows.size() * 2) {
+            compact();
+        }
+    }
+
+    private void apply(Record record) {
+        Row row = rows.get(record.rowId);
+        switch (record.type) {
+            case PUT:
+            case PUT_ENCODED:
+            case PUT_PACKED:
+            case PUT_BLOB:
+                if (row != null) {
+                    removeRow(row);
+                }
+                Row oldRow = rowsByKey.get(record.key);
+                if (oldRow != null) {
+                    removeRow(oldRow);
+                }
+                row = new Row(record);
+                rows.put(row.rowId, row);
+                rowsByKey.put(row.key, row);
+                rowsByLastUsed.add(row);
+                totalSize += row.size;
+                maxRowId = Math.max(maxRowId, row.rowId);
+                break;
+            case DELETE:
+                if (row != null) {
+                    removeRow(row);
+                }
+                break;
+            case TOUCH:
+                if (row != null) {
+                    rowsByLastUsed.remove(row);
+                    row.lastUsed = record.lastUsed;
+                    rowsByLastUsed.add(row);
+                }
+                break;
+            case MOVE:
+                if (row != null) {
+                    row.slab = record.slab;
+                    row.offset = record.offset;
+                }
+                break;
+        }
+    }
+
+    private void removeRow(Row row) {
+        rows.remove(row.rowId);
+        rowsByKey.remove(row.key);
+        rowsByLastUsed.remove(row);
+        totalSize -= row.size;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e("VIF", "Error creating journal dir " + dir);
+        }
+        generation = 0;
+        File snapshot = new File(dir, SNAPSHOT_FILE);
+        if (snapshot.exists()) {
+            generation = replay(snapshot, true);
+        }
+        File logFile = logFile(generation);
+        if (logFile.exists()) {
+            logRecords = (int) replay(logFile, false);
+        }
+        maxRowId = Math.max(maxRowId, readMaxRowId());
+        deleteOldLogs();
+        try {
+            log = new FileOutputStream(logFile, true);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error opening journal " + logFile, e);
+        }
+    }
+
+    /**
+     * Applies all the valid frames of the file and cuts off the rest
+     *
+     * @return the snapshot generation or the number of the replayed log records
+     */
+    private long replay(File file, boolean isSnapshot) {
+        long result = 0;
+        long validLength = 0;
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if (isSnapshot) {
+                result = inputStream.readLong();
+                validLength = 8;
+            }
+            byte[] frame;
+            while ((frame = readFrame(inputStream)) != null) {
+                // All the records are read before any is applied, so a bad frame is dropped as a whole
+                List<Record> records = readRecords(frame);
+                for (Record record : records) {
+                    apply(record);
+                }
+                if (!isSnapshot) {
+                    result += records.size();
+                }
+                validLength += 12 + frame.length;
+            }
+        } catch (IOException e) {
+            Log.e("VIF", "Error replaying journal " + file, e);
+        } finally {
+            close(inputStream);
+        }
+        if (!isSnapshot && validLength < file.length()) {
+            Log.e("VIF", "Dropping torn journal tail of " + file);
+            truncate(file, validLength);
+        }
+        return result;
+    }
+
+    /**
+     * @return the frame payload or null if there are no more valid frames
+     */
+    private static byte[] readFrame(DataInputStream inputStream) throws IOException {
+        try {
+            int length = inputStream.readInt();
+            long crc = inputStream.readLong();
+            if (length < 0 || length > MAX_FRAME_LENGTH) {
+                return null;
+            }
+            byte[] frame = new byte[length];
+            inputStream.readFully(frame);
+            CRC32 crc32 = new CRC32();
+            crc32.update(frame, 0, length);
+            return crc32.getValue() == crc ? frame : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static List<Record> readRecords(byte[] frame) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(frame));
+        ArrayList<Record> records = new ArrayList<>();
+        while (inputStream.available() > 0) {
+            records.add(readRecord(inputStream));
+        }
+        return records;
+    }
+
+    private static Record readRecord(DataInputStream inputStream) throws IOException {
+        byte type = inputStream.readByte();
+        Record record = new Record((byte) (type & ~CHECKSUM_FLAG), inputStream.readLong());
+        switch (record.type) {
+            case PUT:
+            case PUT_ENCODED:
+            case PUT_PACKED:
+            case PUT_BLOB:
+                record.size = inputStream.readLong();
+                record.lastUsed = inputStream.readLong();
+                record.createdOn = inputStream.readLong();
+                byte[] key = new byte[inputStream.readInt()];
+                inputStream.readFully(key);
+                record.key = new String(key, "UTF-8");
+                if (record.type != PUT) {
+                    record.rawSize = inputStream.readLong();
+                    record.codec = inputStream.readInt();
+                } else {
+                    record.rawSize = record.size;
+                    record.codec = Codec.NONE.getId();
+                }
+                if (record.type == PUT_PACKED) {
+                    record.slab = inputStream.readLong();
+                    record.offset = inputStream.readLong();
+                } else if (record.type == PUT_BLOB) {
+                    record.hash = inputStream.readUTF();
+                }
+                if ((type & CHECKSUM_FLAG) != 0) {
+                    record.checksum = inputStream.readInt() & 0xffffffffL;
+                }
+                break;
+            case TOUCH:
+                record.lastUsed = inputStream.readLong();
+                break;
+            case MOVE:
+                record.slab = inputStream.readLong();
+                record.offset = inputStream.readLong();
+                break;
+            case DELETE:
+                break;
+            default:
+                throw new IOException("Unknown record type " + record.type);
+        }
+        return record;
+    }
+
+    /**
+     * @return the records as frames of up to {@link #MAX_FRAME_LENGTH} bytes, the same limit the replay checks
+     */
+    private static byte[] toFrames(List<Record> records) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (Record record : records) {
+            byte[] bytes = toBytes(record);
+            if (bytes.length > MAX_FRAME_LENGTH) {
+                throw new IOException("Record of " + record.key + " does not fit into a frame");
+            }
+            if (payload.size() + bytes.length > MAX_FRAME_LENGTH) {
+                writeFrame(payload.toByteArray(), frames);
+                payload.reset();
+            }
+            payload.write(bytes);
+        }
+        writeFrame(payload.toByteArray(), frames);
+        return frames.toByteArray();
+    }
+
+    private static byte[] toBytes(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        boolean hasChecksum = record.checksum != CacheIndex.NO_CHECKSUM;
+        outputStream.writeByte(hasChecksum ? record.type | CHECKSUM_FLAG : record.type);
+        outputStream.writeLong(record.rowId);
+        switch (record.type) {
+            case PUT:
+            case PUT_ENCODED:
+            case PUT_PACKED:
+            case PUT_BLOB:
+                outputStream.writeLong(record.size);
+                outputStream.writeLong(record.lastUsed);
+                outputStream.writeLong(record.createdOn);
+                byte[] key = record.key.getBytes("UTF-8");
+                outputStream.writeInt(key.length);
+                outputStream.write(key);
+                if (record.type != PUT) {
+                    outputStream.writeLong(record.rawSize);
+                    outputStream.writeInt(record.codec);
+                }
+                if (record.type == PUT_PACKED) {
+                    outputStream.writeLong(record.slab);
+                    outputStream.writeLong(record.offset);
+                } else if (record.type == PUT_BLOB) {
+                    outputStream.writeUTF(record.hash);
+                }
+                if (hasChecksum) {
+                    outputStream.writeInt((int) record.checksum);
+                }
+                break;
+            case TOUCH:
+                outputStream.writeLong(record.lastUsed);
+                break;
+            case MOVE:
+                outputStream.writeLong(record.slab);
+                outputStream.writeLong(record.offset);
+                break;
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeFrame(byte[] payload, ByteArrayOutputStream frames) throws IOException {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        DataOutputStream frameStream = new DataOutputStream(frames);
+        frameStream.writeInt(payload.length);
+        frameStream.writeLong(crc32.getValue());
+        frameStream.write(payload);
+    }
+
+    /**
+     * Writes all the live entries into a new snapshot and starts a new log. The snapshot is
+     * renamed in place before the old log is removed, so a crash in the middle is recoverable.
+     */
+    private void compact() {
+        long newGeneration = generation + 1;
+        File tempSnapshot = new File(dir, SNAPSHOT_FILE + ".tmp");
+        FileOutputStream outputStream = null;
+        try {
+            ArrayList<Record> records = new ArrayList<>(rows.size());
+            for (Row row : rows.values()) {
+                Record record = new Record(putType(row.codec, row.slab, row.hash), row.rowId);
+                record.key = row.key;
+                record.size = row.size;
+                record.rawSize = row.rawSize;
+                record.codec = row.codec;
+                record.slab = row.slab;
+                record.offset = row.offset;
+                record.hash = row.hash;
+                record.checksum = row.checksum;
+                record.lastUsed = row.lastUsed;
+                record.createdOn = row.createdOn;
+                records.add(record);
+            }
+            outputStream = new FileOutputStream(tempSnapshot, false);
+            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            dataOutputStream.writeLong(newGeneration);
+            for (int i = 0; i < records.size(); i += SNAPSHOT_FRAME_RECORDS) {
+                dataOutputStream.write(toFrames(records.subList(i,
+                        Math.min(records.size(), i + SNAPSHOT_FRAME_RECORDS))));
+            }
+            dataOutputStream.flush();
+            outputStream.getFD().sync();
+            outputStream.close();
+            outputStream = null;
+
+            saveMaxRowId();
+            File newLog = logFile(newGeneration);
+            FileOutputStream newLogStream = new FileOutputStream(newLog, false);
+            if (!tempSnapshot.renameTo(new File(dir, SNAPSHOT_FILE))) {
+                close(newLogStream);
+                throw new IOException("Error renaming " + tempSnapshot);
+            }
+            close(log);
+            log = newLogStream;
+            generation = newGeneration;
+            logRecords = 0;
+            deleteOldLogs();
+        } catch (IOException e) {
+            Log.e("VIF", "Error compacting journal " + dir, e);
+        } finally {
+            close(outputStream);
+        }
+    }
+
+    /**
+     * @return the biggest rowId saved by the last compaction or 0
+     */
+    private long readMaxRowId() {
+        File file = new File(dir, MAX_ROW_ID_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new FileInputStream(file));
+            return inputStream.readLong();
+        } catch (IOException e) {
+            Log.e("VIF", "Error reading " + file, e);
+            return 0;
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    /**
+     * Saved before the snapshot replaces the log, that holds the puts of the deleted entries
+     */
+    private void saveMaxRowId() throws IOException {
+        File file = new File(dir, MAX_ROW_ID_FILE);
+        FileOutputStream outputStream = new FileOutputStream(file, false);
+        try {
+            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+            dataOutputStream.writeLong(maxRowId);
+            dataOutputStream.flush();
+            outputStream.getFD().sync();
+        } finally {
+            close(outputStream);
+        }
+    }
+
+    private void deleteOldLogs() {
+        File current = logFile(generation);
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(LOG_SUFFIX) && !file.equals(current) && !file.delete()) {
+                Log.e("VIF", "Error removing old journal " + file);
+            }
+        }
+    }
+
+    private File logFile(long generation) {
+        return new File(dir, generation + LOG_SUFFIX);
+    }
+
+    private static void truncate(File file, long length) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(length);
+        } catch (IOException e) {
+            Log.e("VIF", "Error truncating " + file, e);
+        } finally {
+            close(randomAccessFile);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Row {
+        final long rowId;
+        final String key;
+        final long size;
+        final long rawSize;
+        final int codec;
+        final String hash;
+        final long checksum;
+        final long createdOn;
+        long lastUsed;
+        long slab;
+        long offset;
+
+        Row(Record record) {
+            rowId = record.rowId;
+            key = record.key;
+            size = record.size;
+            rawSize = record.rawSize;
+            codec = record.codec;
+            hash = record.hash;
+            checksum = record.checksum;
+            lastUsed = record.lastUsed;
+            createdOn = record.createdOn;
+            slab = record.slab;
+            offset = record.offset;
+        }
+    }
+
+    private static class Record {
+        final byte type;
+        final long rowId;
+        String key;
+        long size;
+        long rawSize;
+        int codec;
+        long slab;
+        long offset;
+        String hash;
+        long checksum = CacheIndex.NO_CHECKSUM;
+        long lastUsed;
+        long createdOn;
+
+        Record(byte type, long rowId) {
+            this.type = type;
+            this.rowId = rowId;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.gazman.disk_cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The default policy, evicts by the last used time kept in the journal
+ */
+class LruPolicy implements EvictionPolicy {
+    private final Journal journal;
+
+    LruPolicy(Journal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public void open(File stateFile, long capacity) {
+    }
+
+    @Override
+    public void onRestore(long rowId, String key, long size) {
+    }
+
+    @Override
+    public void onAdd(long rowId, String key, long size) {
+    }
+
+    @Override
+    public void onAccess(long rowId, String key) {
+    }
+
+    @Override
+    public void onRemove(long rowId) {
+    }
+
+    @Override
+    public List<Long> getVictims(int limit, int skip) {
+        List<Integer> keys = journal.getOldestKeys(limit, skip);
+        ArrayList<Long> victims = new ArrayList<>(keys.size());
+        for (int key : keys) {
+            victims.add((long) key);
+        }
+        return victims;
+    }
+
+    @Override
+    public void save(File stateFile) {
+    }
+}
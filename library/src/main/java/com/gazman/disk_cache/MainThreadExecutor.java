@@ -0,0 +1,18 @@
+package com.gazman.disk_cache;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers the callbacks on the main thread, the default callback executor of the cache
+ */
+class MainThreadExecutor implements Executor {
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable command) {
+        handler.post(command);
+    }
+}
@@ -0,0 +1,133 @@
+package com.gazman.disk_cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory tier in front of getAsObject, holds parsed results by cache key and parser type.
+ * It is bounded by the total weight of its values and evicts the least recently used ones first.
+ * <p>
+ * Each value remembers the rowId it was parsed from, so a value of a replaced entry is never returned
+ * even if it was not invalidated yet.
+ */
+class ObjectCache {
+    private final long maxWeight;
+    private final VIF.Weigher weigher;
+    private final LinkedHashMap<ObjectKey, Node> nodes = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<String, ArrayList<ObjectKey>> keysByCacheKey = new HashMap<>();
+    private long weight;
+
+    ObjectCache(long maxWeight, VIF.Weigher weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return the cached value or null if it is missing or was parsed from another rowId
+     */
+    synchronized Object get(String key, Class<?> parserType, long rowId) {
+        Node node = nodes.get(new ObjectKey(key, parserType));
+        return node != null && node.rowId == rowId ? node.value : null;
+    }
+
+    synchronized void put(String key, Class<?> parserType, long rowId, Object value) {
+        long valueWeight = weigher.weigh(key, value);
+        if (valueWeight > maxWeight) {
+            return;
+        }
+        ObjectKey objectKey = new ObjectKey(key, parserType);
+        Node oldNode = nodes.put(objectKey, new Node(rowId, value, valueWeight));
+        if (oldNode != null) {
+            weight -= oldNode.weight;
+        } else {
+            ArrayList<ObjectKey> keys = keysByCacheKey.get(key);
+            if (keys == null) {
+                keys = new ArrayList<>(1);
+                keysByCacheKey.put(key, keys);
+            }
+            keys.add(objectKey);
+        }
+        weight += valueWeight;
+        trim();
+    }
+
+    /**
+     * Removes the values parsed from this cache key by any parser
+     */
+    synchronized void invalidate(String key) {
+        ArrayList<ObjectKey> keys = keysByCacheKey.remove(key);
+        if (keys == null) {
+            return;
+        }
+        for (ObjectKey objectKey : keys) {
+            Node node = nodes.remove(objectKey);
+            if (node != null) {
+                weight -= node.weight;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        nodes.clear();
+        keysByCacheKey.clear();
+        weight = 0;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<ObjectKey, Node>> iterator = nodes.entrySet().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            Map.Entry<ObjectKey, Node> eldest = iterator.next();
+            iterator.remove();
+            weight -= eldest.getValue().weight;
+            ArrayList<ObjectKey> keys = keysByCacheKey.get(eldest.getKey().key);
+            if (keys != null) {
+                keys.remove(eldest.getKey());
+                if (keys.isEmpty()) {
+                    keysByCacheKey.remove(eldest.getKey().key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cache key and the type of the parser that read it
+     */
+    static class ObjectKey {
+        final String key;
+        final Class<?> parserType;
+
+        ObjectKey(String key, Class<?> parserType) {
+            this.key = key;
+            this.parserType = parserType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ObjectKey)) {
+                return false;
+            }
+            ObjectKey other = (ObjectKey) o;
+            return key.equals(other.key) && parserType == other.parserType;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + parserType.hashCode();
+        }
+    }
+
+    private static class Node {
+        final long rowId;
+        final Object value;
+        final long weight;
+
+        Node(long rowId, Object value, long weight) {
+            this.rowId = rowId;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
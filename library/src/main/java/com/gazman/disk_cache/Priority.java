@@ -0,0 +1,27 @@
+package com.gazman.disk_cache;
+
+/**
+ * Scheduling hint of a cache operation. Operations run by deadline, their submit time plus the slack
+ * of their priority, so they jump ahead of queued operations with a bigger slack, but never wait
+ * longer than their slack for operations that were submitted after them.
+ */
+public enum Priority {
+    /**
+     * Reads for what the user is looking at, the default of all the reads
+     */
+    HIGH(0),
+    /**
+     * The default of all the writes
+     */
+    NORMAL(100),
+    /**
+     * Prefetching and other work nobody is waiting for
+     */
+    LOW(1000);
+
+    final long slackMillis;
+
+    Priority(long slackMillis) {
+        this.slackMillis = slackMillis;
+    }
+}
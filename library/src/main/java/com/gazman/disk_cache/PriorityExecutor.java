@@ -0,0 +1,79 @@
+package com.gazman.disk_cache;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool that runs its queued tasks by deadline instead of submission order, tasks with
+ * the same deadline run in submission order. Deadlines are nanoseconds since the pool was created.
+ */
+class PriorityExecutor extends ThreadPoolExecutor {
+    /**
+     * Deadline of a task that should run before all the other queued tasks
+     */
+    static final long FIRST = Long.MIN_VALUE;
+    /**
+     * Deadline of a task that should run after all the other queued tasks
+     */
+    static final long LAST = Long.MAX_VALUE;
+
+    private final long origin = System.nanoTime();
+    private final AtomicLong sequence = new AtomicLong();
+
+    PriorityExecutor(int threads) {
+        super(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+    }
+
+    /**
+     * @return the deadline of a task submitted now with the given slack
+     */
+    long deadline(long slackMillis) {
+        return System.nanoTime() - origin + TimeUnit.MILLISECONDS.toNanos(slackMillis);
+    }
+
+    void execute(Runnable task, long deadline) {
+        super.execute(new Task(task, deadline, sequence.incrementAndGet()));
+    }
+
+    /**
+     * Runs the task with no slack
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (task instanceof Task) {
+            super.execute(task);
+        } else {
+            execute(task, deadline(0));
+        }
+    }
+
+    private static class Task implements Runnable, Comparable<Task> {
+        private final Runnable task;
+        private final long deadline;
+        private final long sequence;
+
+        Task(Runnable task, long deadline, long sequence) {
+            this.task = task;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            if (sequence != other.sequence) {
+                return sequence < other.sequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.gazman.disk_cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects last_used updates in memory so they can be written to the journal in one batch,
+ * instead of turning every cache hit into a write transaction.
+ */
+class RecencyBuffer {
+    private final int maxPending;
+    private HashMap<Long, Long> pending = new HashMap<>();
+
+    RecencyBuffer(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @return true if the buffer is full and should be flushed
+     */
+    synchronized boolean touch(long rowId, long lastUsed) {
+        pending.put(rowId, lastUsed);
+        return pending.size() >= maxPending;
+    }
+
+    synchronized void forget(long rowId) {
+        pending.remove(rowId);
+    }
+
+    synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Returns all the pending updates and clears the buffer
+     */
+    synchronized Map<Long, Long> drain() {
+        HashMap<Long, Long> drained = pending;
+        pending = new HashMap<>();
+        return drained;
+    }
+}
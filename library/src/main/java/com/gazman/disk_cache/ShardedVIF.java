@@ -0,0 +1,401 @@
+package com.gazman.disk_cache;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache split into independent {@link VIF} shards, keys are routed to the shards by their hash.
+ * Each shard has its own journal, directory, cache thread and reader pool, so puts and journal
+ * commits of different shards run in parallel instead of queueing behind a single writer.
+ * <p>
+ * maxSize is enforced across all the shards, once the total size crosses it every shard evicts
+ * its least recently used entries. The number of shards of a cache dir must not change between
+ * sessions, otherwise the keys are routed to shards that do not have them.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ShardedVIF {
+    private final VIF[] shards;
+    private final SizeBudget sizeBudget;
+
+    /**
+     * Creates or restores the shards from their SQLite journals, shard i keeps its journal in the
+     * database dbName-i and its entries in the dbName-i directory of context.getExternalCacheDir()
+     *
+     * @param context    app context
+     * @param dbName     prefix of the database and directory names of the shards
+     * @param shardCount number of shards, usually about the number of cores
+     * @param maxSize    maximum total size of all the shards
+     */
+    public ShardedVIF(Context context, String dbName, int shardCount, long maxSize) {
+        this(shardCount, maxSize);
+        File root = context.getExternalCacheDir();
+        for (int i = 0; i < shardCount; i++) {
+            VIF shard = new VIF(context, dbName + "-" + i, maxSize / shardCount);
+            shard.setCacheDir(new File(root, dbName + "-" + i));
+            addShard(i, shard);
+        }
+    }
+
+    /**
+     * Creates or restores the shards in the sub directories of the given directory,
+     * each shard keeps its journal in an append only log
+     *
+     * @param cacheDir   parent directory of the shards
+     * @param shardCount number of shards, usually about the number of cores
+     * @param maxSize    maximum total size of all the shards
+     */
+    public ShardedVIF(File cacheDir, int shardCount, long maxSize) {
+        this(shardCount, maxSize);
+        for (int i = 0; i < shardCount; i++) {
+            addShard(i, new VIF(new File(cacheDir, "shard-" + i), maxSize / shardCount));
+        }
+    }
+
+    private ShardedVIF(int shardCount, long maxSize) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        shards = new VIF[shardCount];
+        sizeBudget = new SizeBudget(maxSize);
+    }
+
+    private void addShard(int i, VIF shard) {
+        shard.setSizeBudget(sizeBudget);
+        shards[i] = shard;
+    }
+
+    /**
+     * @return the shard that holds the key, for the operations and settings this class does not expose
+     */
+    public VIF getShard(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return shards[(hash & 0x7fffffff) % shards.length];
+    }
+
+    /**
+     * @return all the shards, in a fixed order. Settings that this class does not expose should be
+     * applied to each of them before the first cache operation.
+     */
+    public List<VIF> getShards() {
+        return Collections.unmodifiableList(Arrays.asList(shards));
+    }
+
+    /**
+     * Same as {@link VIF#setLowWatermark(long)}, for the total size of all the shards
+     */
+    public void setLowWatermark(long lowWatermark) {
+        sizeBudget.setLowWatermark(lowWatermark);
+    }
+
+    /**
+     * Same as {@link VIF#setCodec(Codec)} for all the shards
+     */
+    public void setCodec(Codec codec) {
+        for (VIF shard : shards) {
+            shard.setCodec(codec);
+        }
+    }
+
+    /**
+     * Same as {@link VIF#setSlabThreshold(long)} for all the shards
+     */
+    public void setSlabThreshold(long maxEntrySize) {
+        for (VIF shard : shards) {
+            shard.setSlabThreshold(maxEntrySize);
+        }
+    }
+
+    /**
+     * Same as {@link VIF#setDeduplication(boolean)} for all the shards, identical content is
+     * stored once per shard
+     */
+    public void setDeduplication(boolean enabled) {
+        for (VIF shard : shards) {
+            shard.setDeduplication(enabled);
+        }
+    }
+
+    /**
+     * Same as {@link VIF#setVerification(Verification)} for all the shards
+     */
+    public void setVerification(Verification verification) {
+        for (VIF shard : shards) {
+            shard.setVerification(verification);
+        }
+    }
+
+    /**
+     * Same as {@link VIF#setCallbackExecutor(Executor)} for all the shards
+     */
+    public void setCallbackExecutor(Executor executor) {
+        for (VIF shard : shards) {
+            shard.setCallbackExecutor(executor);
+        }
+    }
+
+    public void put(String key, InputStream inputStream) {
+        getShard(key).put(key, inputStream);
+    }
+
+    public void put(String key, InputStream inputStream, Runnable completeCallback) {
+        getShard(key).put(key, inputStream, completeCallback);
+    }
+
+    public void put(String key, InputStream inputStream, Priority priority, Runnable completeCallback) {
+        getShard(key).put(key, inputStream, priority, completeCallback);
+    }
+
+    public CacheFuture<Boolean> putAsync(String key, InputStream inputStream) {
+        return getShard(key).putAsync(key, inputStream);
+    }
+
+    public CacheFuture<Boolean> putAsync(String key, InputStream inputStream, Priority priority) {
+        return getShard(key).putAsync(key, inputStream, priority);
+    }
+
+    /**
+     * Same as {@link VIF#putAll(Map, VIF.BulkCallback)}, the entries of each shard are committed
+     * together and the shards commit in parallel
+     */
+    public void putAll(Map<String, InputStream> entries, VIF.BulkCallback<Boolean> callback) {
+        putAll(entries, Priority.NORMAL, callback);
+    }
+
+    public void putAll(Map<String, InputStream> entries, Priority priority, VIF.BulkCallback<Boolean> callback) {
+        Map<VIF, Map<String, InputStream>> entriesByShard = new HashMap<>();
+        for (Map.Entry<String, InputStream> entry : entries.entrySet()) {
+            VIF shard = getShard(entry.getKey());
+            Map<String, InputStream> shardEntries = entriesByShard.get(shard);
+            if (shardEntries == null) {
+                shardEntries = new HashMap<>();
+                entriesByShard.put(shard, shardEntries);
+            }
+            shardEntries.put(entry.getKey(), entry.getValue());
+        }
+        if (entriesByShard.isEmpty()) {
+            entriesByShard.put(shards[0], entries);
+        }
+        VIF.BulkCallback<Boolean> merged = merge(entriesByShard.size(), callback);
+        for (Map.Entry<VIF, Map<String, InputStream>> entry : entriesByShard.entrySet()) {
+            entry.getKey().putAll(entry.getValue(), priority, merged);
+        }
+    }
+
+    public void delete(String key) {
+        getShard(key).delete(key);
+    }
+
+    public CacheFuture<Boolean> deleteAsync(String key) {
+        return getShard(key).deleteAsync(key);
+    }
+
+    /**
+     * Same as {@link VIF#deleteAll(Collection, VIF.BulkCallback)}, each shard deletes its keys
+     * with a single journal statement
+     */
+    public void deleteAll(Collection<String> keys, VIF.BulkCallback<Boolean> callback) {
+        Map<VIF, List<String>> keysByShard = groupByShard(keys);
+        VIF.BulkCallback<Boolean> merged = merge(keysByShard.size(), callback);
+        for (Map.Entry<VIF, List<String>> entry : keysByShard.entrySet()) {
+            entry.getKey().deleteAll(entry.getValue(), merged);
+        }
+    }
+
+    public void getAsFile(String key, VIF.FileCallback callback) {
+        getShard(key).getAsFile(key, callback);
+    }
+
+    public void getAsFile(String key, Priority priority, VIF.FileCallback callback) {
+        getShard(key).getAsFile(key, priority, callback);
+    }
+
+    public CacheFuture<File> getAsFileAsync(String key) {
+        return getShard(key).getAsFileAsync(key);
+    }
+
+    public CacheFuture<File> getAsFileAsync(String key, Priority priority) {
+        return getShard(key).getAsFileAsync(key, priority);
+    }
+
+    public void getAll(Collection<String> keys, VIF.BulkCallback<File> callback) {
+        Map<VIF, List<String>> keysByShard = groupByShard(keys);
+        VIF.BulkCallback<File> merged = merge(keysByShard.size(), callback);
+        for (Map.Entry<VIF, List<String>> entry : keysByShard.entrySet()) {
+            entry.getKey().getAll(entry.getValue(), merged);
+        }
+    }
+
+    public void openEntry(String key, VIF.EntryCallback callback) {
+        getShard(key).openEntry(key, callback);
+    }
+
+    public void openInputStream(String key, VIF.StreamCallback callback) {
+        getShard(key).openInputStream(key, callback);
+    }
+
+    public <T> void getAsObject(String key, VIF.ParserCallback<T> callback) {
+        getShard(key).getAsObject(key, callback);
+    }
+
+    public <T> void getAsObject(String key, Priority priority, VIF.ParserCallback<T> callback) {
+        getShard(key).getAsObject(key, priority, callback);
+    }
+
+    public <T> CacheFuture<T> getAsObjectAsync(String key, VIF.Parser<T> parser) {
+        return getShard(key).getAsObjectAsync(key, parser);
+    }
+
+    public <T> CacheFuture<T> getAsObjectAsync(String key, Priority priority, VIF.Parser<T> parser) {
+        return getShard(key).getAsObjectAsync(key, priority, parser);
+    }
+
+    public <T> void getOrLoad(String key, VIF.Loader loader, VIF.ParserCallback<T> callback) {
+        getShard(key).getOrLoad(key, loader, callback);
+    }
+
+    public <T> void getOrLoad(String key, VIF.Loader loader, Priority priority, VIF.ParserCallback<T> callback) {
+        getShard(key).getOrLoad(key, loader, priority, callback);
+    }
+
+    /**
+     * Same as {@link VIF#warmUp(int, long)}, the limits are split evenly between the shards, which warm
+     * their own hottest entries in parallel. Cancelling the returned future stops all the shards.
+     */
+    public CacheFuture<WarmUpResult> warmUp(int maxEntries, long maxBytes) {
+        return warmUp(maxEntries, maxBytes, null);
+    }
+
+    /**
+     * Same as {@link VIF#warmUp(int, long, VIF.Parser)}, with the limits split as in {@link #warmUp(int, long)}
+     */
+    public <T> CacheFuture<WarmUpResult> warmUp(int maxEntries, long maxBytes, VIF.Parser<T> parser) {
+        ArrayList<CacheFuture<WarmUpResult>> futures = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            int shardEntries = maxEntries / shards.length + (i < maxEntries % shards.length ? 1 : 0);
+            long shardBytes = maxBytes / shards.length + (i < maxBytes % shards.length ? 1 : 0);
+            futures.add(parser != null ? shards[i].warmUp(shardEntries, shardBytes, parser)
+                    : shards[i].warmUp(shardEntries, shardBytes));
+        }
+        return mergeWarmUps(futures);
+    }
+
+    /**
+     * @return total size of all the shards in bytes
+     */
+    public long getTotalSize() {
+        return sizeBudget.getTotalSize();
+    }
+
+    public long getMaxSize() {
+        return sizeBudget.getMaxSize();
+    }
+
+    /**
+     * @return snapshot of the statistics of each shard, in the order of {@link #getShards()}
+     */
+    public List<CacheStats> getStats() {
+        ArrayList<CacheStats> stats = new ArrayList<>(shards.length);
+        for (VIF shard : shards) {
+            stats.add(shard.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Asynchronously shut down all the shards
+     */
+    public void shutDown() {
+        for (VIF shard : shards) {
+            shard.shutDown();
+        }
+    }
+
+    /**
+     * Synchronously shut down all the shards, they are shut down in parallel
+     */
+    public void shutDownAndWait() {
+        shutDown();
+        for (VIF shard : shards) {
+            shard.shutDownAndWait();
+        }
+    }
+
+    private Map<VIF, List<String>> groupByShard(Collection<String> keys) {
+        Map<VIF, List<String>> keysByShard = new HashMap<>();
+        for (String key : keys) {
+            VIF shard = getShard(key);
+            List<String> shardKeys = keysByShard.get(shard);
+            if (shardKeys == null) {
+                shardKeys = new ArrayList<>();
+                keysByShard.put(shard, shardKeys);
+            }
+            shardKeys.add(key);
+        }
+        if (keysByShard.isEmpty()) {
+            keysByShard.put(shards[0], Collections.<String>emptyList());
+        }
+        return keysByShard;
+    }
+
+    /**
+     * @return a future of the sum of the shard results, cancelling it cancels the shard futures
+     */
+    private static CacheFuture<WarmUpResult> mergeWarmUps(final List<CacheFuture<WarmUpResult>> futures) {
+        final CacheFuture<WarmUpResult> merged = new CacheFuture<>();
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        final AtomicInteger entryCount = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        for (CacheFuture<WarmUpResult> future : futures) {
+            future.addListener((result, error) -> {
+                if (result != null) {
+                    entryCount.addAndGet(result.getEntryCount());
+                    bytes.addAndGet(result.getBytes());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    merged.complete(new WarmUpResult(entryCount.get(), bytes.get()));
+                }
+            }, Runnable::run);
+        }
+        merged.addListener((result, error) -> {
+            if (merged.isCancelled()) {
+                for (CacheFuture<WarmUpResult> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }, Runnable::run);
+        return merged;
+    }
+
+    /**
+     * @return a callback that collects the results of the given number of shards and passes them
+     * to the callback at once, on the callback executor of the last shard
+     */
+    private static <T> VIF.BulkCallback<T> merge(int shardCount, final VIF.BulkCallback<T> callback) {
+        if (callback == null) {
+            return null;
+        }
+        final HashMap<String, T> results = new HashMap<>();
+        final AtomicInteger remaining = new AtomicInteger(shardCount);
+        return shardResults -> {
+            synchronized (results) {
+                results.putAll(shardResults);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                callback.onResult(results);
+            }
+        };
+    }
+}
@@ -0,0 +1,56 @@
+package com.gazman.disk_cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Coalesces concurrent requests for the same key, the first request starts a flight and runs it,
+ * the requests that arrive while it is running only add their listeners to it.
+ * <p>
+ * A flight belongs to the write generation it was started in, requests from a later generation
+ * start a new flight, so they never get a result that was read before their own writes.
+ *
+ * @param <K> flight key
+ * @param <L> listener of the flight result
+ */
+class SingleFlight<K, L> {
+    private final HashMap<K, Flight<L>> flights = new HashMap<>();
+
+    /**
+     * @return the new flight if the caller should run it, or null if the listener joined
+     * a flight that is already running
+     */
+    synchronized Flight<L> join(K key, long generation, L listener) {
+        Flight<L> flight = flights.get(key);
+        if (flight != null && flight.generation == generation) {
+            flight.listeners.add(listener);
+            return null;
+        }
+        flight = new Flight<>(generation);
+        flight.listeners.add(listener);
+        flights.put(key, flight);
+        return flight;
+    }
+
+    /**
+     * Completes the flight, no more listeners can join it after this call
+     *
+     * @return all the listeners of the flight
+     */
+    synchronized List<L> land(K key, Flight<L> flight) {
+        if (flights.get(key) == flight) {
+            flights.remove(key);
+        }
+        return flight.listeners;
+    }
+
+    static class Flight<L> {
+        final long generation;
+        final ArrayList<L> listeners = new ArrayList<>(1);
+
+        Flight(long generation) {
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.gazman.disk_cache;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Size limit shared by the shards of a {@link ShardedVIF}. Once the total size of all the shards
+ * crosses maxSize every shard is trimmed, each one down to its share of the low watermark, so the
+ * least recently used entries of all the shards are evicted and not only the ones of the shard
+ * that happened to cross the limit. A shard is never trimmed below an equal share of the low
+ * watermark, so idle shards are not drained while busy shards are still catching up with their
+ * eviction. A shard counts once it is started.
+ */
+class SizeBudget {
+    private final CopyOnWriteArrayList<VIF> shards = new CopyOnWriteArrayList<>();
+    private final long maxSize;
+    private volatile long lowWatermark;
+
+    SizeBudget(long maxSize) {
+        this.maxSize = maxSize;
+        lowWatermark = maxSize / 10 * 9;
+    }
+
+    void addShard(VIF shard) {
+        shards.add(shard);
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    void setLowWatermark(long lowWatermark) {
+        this.lowWatermark = Math.max(0, Math.min(lowWatermark, maxSize));
+    }
+
+    long getTotalSize() {
+        long totalSize = 0;
+        for (VIF shard : shards) {
+            totalSize += shard.getTotalSize();
+        }
+        return totalSize;
+    }
+
+    boolean isExceeded() {
+        return getTotalSize() > maxSize;
+    }
+
+    /**
+     * Queues an eviction pass on each of the shards once the total size crossed maxSize
+     */
+    void scheduleEviction() {
+        if (isExceeded()) {
+            for (VIF shard : shards) {
+                shard.scheduleOwnEviction();
+            }
+        }
+    }
+
+    /**
+     * @param shardSize current size of the shard
+     * @return the size the shard should be trimmed down to, in proportion to its part of the total size
+     * but not below an equal share of the low watermark
+     */
+    long getShardTarget(long shardSize) {
+        long totalSize = getTotalSize();
+        long equalShare = lowWatermark / shards.size();
+        if (totalSize <= 0) {
+            return shardSize;
+        }
+        return Math.max(equalShare, (long) (shardSize * ((double) lowWatermark / totalSize)));
+    }
+}
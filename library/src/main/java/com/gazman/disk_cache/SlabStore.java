@@ -0,0 +1,240 @@
+package com.gazman.disk_cache;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs small entries into append only slab files, so they do not pay for a file each.
+ * A packed entry is addressed by its slab and offset, its length is the entry size.
+ * <p>
+ * Only the active slab is appended to, a new one is started once it is full and on each startup.
+ * Bytes of removed entries stay in their slab as dead space, sparse slabs are compacted by copying
+ * their live entries into the active slab. A slab file is deleted once it has no live entries.
+ * <p>
+ * All the methods except {@link #toFile(long)} and {@link #extract(long, long, long, File)}
+ * are called from the cache thread only.
+ */
+class SlabStore {
+    static final long SLAB_SIZE = 1024 * 1024;
+    private static final String SLAB_SUFFIX = ".slab";
+
+    private final File dir;
+    private final HashMap<Long, Slab> slabs = new HashMap<>();
+    private long activeSlab;
+    private FileOutputStream active;
+
+    SlabStore(File dir) {
+        this.dir = dir;
+    }
+
+    File toFile(long slab) {
+        return new File(dir, slab + SLAB_SUFFIX);
+    }
+
+    /**
+     * Counts the live bytes of each slab and deletes the slab files with no live entries
+     */
+    void load(Collection<CacheIndex.Entry> entries) {
+        for (CacheIndex.Entry entry : entries) {
+            if (entry.slab != 0) {
+                getSlab(entry.slab).live += entry.size;
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SLAB_SUFFIX)) {
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(name.substring(0, name.length() - SLAB_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            activeSlab = Math.max(activeSlab, id);
+            Slab slab = slabs.get(id);
+            if (slab == null) {
+                if (!file.delete()) {
+                    Log.e("VIF", "Error removing unused slab " + file);
+                }
+            } else {
+                slab.length = file.length();
+            }
+        }
+    }
+
+    /**
+     * Appends size bytes of the file, starting at offset, to the active slab. The bytes are not
+     * counted as live until {@link #add(long, long)} is called.
+     *
+     * @return location of the appended bytes
+     */
+    Location append(File file, long offset, long size) throws IOException {
+        Slab slab = slabs.get(activeSlab);
+        if (active == null || slab.length > 0 && slab.length + size > SLAB_SIZE) {
+            rotate();
+            slab = slabs.get(activeSlab);
+        }
+        Location location = new Location(activeSlab, slab.length);
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            transfer(inputStream.getChannel(), offset, size, active.getChannel());
+            slab.length += size;
+        } catch (IOException e) {
+            // The slab tail is unknown now, start a new one on the next append
+            close(active);
+            active = null;
+            throw e;
+        } finally {
+            close(inputStream);
+        }
+        return location;
+    }
+
+    /**
+     * Counts the bytes of an entry as live
+     */
+    void add(long slab, long size) {
+        getSlab(slab).live += size;
+    }
+
+    /**
+     * Marks the bytes of a removed or moved entry as dead
+     */
+    void release(long slab, long size) {
+        Slab entry = slabs.get(slab);
+        if (entry == null) {
+            return;
+        }
+        entry.live -= size;
+        if (entry.live <= 0 && slab != activeSlab) {
+            slabs.remove(slab);
+            deleteSlab(slab);
+        }
+    }
+
+    /**
+     * @return the full slabs that are more than half dead space
+     */
+    List<Long> getSparseSlabs() {
+        ArrayList<Long> sparseSlabs = new ArrayList<>();
+        for (Map.Entry<Long, Slab> entry : slabs.entrySet()) {
+            Slab slab = entry.getValue();
+            if (entry.getKey() != activeSlab && slab.live < slab.length / 2) {
+                sparseSlabs.add(entry.getKey());
+            }
+        }
+        return sparseSlabs;
+    }
+
+    /**
+     * Copies a packed entry into its own file, safe to call from any thread
+     */
+    void extract(long slab, long offset, long size, File target) throws IOException {
+        FileInputStream inputStream = null;
+        FileOutputStream outputStream = null;
+        try {
+            inputStream = new FileInputStream(toFile(slab));
+            outputStream = new FileOutputStream(target, false);
+            transfer(inputStream.getChannel(), offset, size, outputStream.getChannel());
+            outputStream.close();
+        } finally {
+            close(inputStream);
+            close(outputStream);
+        }
+    }
+
+    void close() {
+        close(active);
+        active = null;
+    }
+
+    private void rotate() throws IOException {
+        close(active);
+        active = null;
+        Slab oldSlab = slabs.get(activeSlab);
+        if (oldSlab != null && oldSlab.live <= 0) {
+            slabs.remove(activeSlab);
+            deleteSlab(activeSlab);
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e("VIF", "Error creating " + dir);
+        }
+        activeSlab++;
+        active = new FileOutputStream(toFile(activeSlab), false);
+        getSlab(activeSlab);
+    }
+
+    /**
+     * Copies the range of the source to the current position of the target by the file system
+     */
+    private static void transfer(FileChannel source, long offset, long size, FileChannel target)
+            throws IOException {
+        long position = offset;
+        long end = offset + size;
+        while (position < end) {
+            long count = source.transferTo(position, end - position, target);
+            if (count <= 0) {
+                throw new IOException("Unexpected end of " + source);
+            }
+            position += count;
+        }
+    }
+
+    private Slab getSlab(long id) {
+        Slab slab = slabs.get(id);
+        if (slab == null) {
+            slab = new Slab();
+            slabs.put(id, slab);
+        }
+        return slab;
+    }
+
+    private void deleteSlab(long slab) {
+        File file = toFile(slab);
+        if (file.exists() && !file.delete()) {
+            Log.e("VIF", "Error removing slab " + file);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Slab {
+        long length;
+        long live;
+    }
+
+    static class Location {
+        final long slab;
+        final long offset;
+
+        Location(long slab, long offset) {
+            this.slab = slab;
+            this.offset = offset;
+        }
+    }
+}
@@ -11,7 +11,7 @@ import io.requery.android.database.sqlite.SQLiteDatabase;
 
 class SqlHelper extends SQLiteOpenHelper {
     SqlHelper(Context context, String name) {
-        super(context, name, null, 1);
+        super(context, name, null, 6);
     }
 
     @Override
@@ -22,14 +22,46 @@ class SqlHelper extends SQLiteOpenHelper {
                 "    file_size INT NOT NULL,\n" +
                 "    finalized INT NOT NULL,\n" +
                 "    last_used INT NOT NULL,\n" +
-                "    created_on INT NOT NULL\n" +
+                "    created_on INT NOT NULL,\n" +
+                "    raw_size INT NOT NULL DEFAULT 0,\n" +
+                "    codec INT NOT NULL DEFAULT 0,\n" +
+                "    slab INT NOT NULL DEFAULT 0,\n" +
+                "    slab_offset INT NOT NULL DEFAULT 0,\n" +
+                "    content_hash TEXT,\n" +
+                "    checksum INT\n" +
                 ")");
         db.execSQL("CREATE UNIQUE INDEX cache_client_key_uindex ON cache (client_key)");
         db.execSQL("CREATE INDEX cache_last_used_index ON cache (last_used DESC)");
+        createMeta(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createMeta(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE cache ADD COLUMN raw_size INT NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE cache ADD COLUMN codec INT NOT NULL DEFAULT 0");
+            db.execSQL("UPDATE cache SET raw_size = file_size");
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE cache ADD COLUMN slab INT NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE cache ADD COLUMN slab_offset INT NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 5) {
+            db.execSQL("ALTER TABLE cache ADD COLUMN content_hash TEXT");
+        }
+        if (oldVersion < 6) {
+            db.execSQL("ALTER TABLE cache ADD COLUMN checksum INT");
+        }
+    }
 
+    private void createMeta(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE meta\n" +
+                "(\n" +
+                "    name TEXT PRIMARY KEY,\n" +
+                "    value INT NOT NULL\n" +
+                ")");
     }
 }
@@ -0,0 +1,77 @@
+package com.gazman.disk_cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the cache. Updates are spread over stripes by thread,
+ * each stripe on its own cache lines, so threads rarely contend on the same counter.
+ * Reads sum all the stripes and may miss updates that happen at the same time.
+ */
+class StatsRecorder {
+    static final int HITS = 0;
+    static final int MISSES = 1;
+    static final int PUTS = 2;
+    static final int EVICTIONS = 3;
+    static final int BYTES_WRITTEN = 4;
+    static final int BYTES_READ = 5;
+    static final int BYTES_EVICTED = 6;
+    static final int CORRUPTIONS = 7;
+    private static final int COUNTERS = 8;
+
+    static final int PUT_LATENCY = 0;
+    static final int GET_LATENCY = 1;
+    static final int PARSE_LATENCY = 2;
+    static final int JOURNAL_LATENCY = 3;
+    private static final int HISTOGRAMS = 4;
+
+    /**
+     * Bucket i counts latencies from 2^i up to 2^(i+1) microseconds
+     */
+    static final int BUCKETS = 32;
+    private static final int STRIPES = 8;
+    private static final int LONGS_PER_CACHE_LINE = 8;
+    private static final int STRIDE = (COUNTERS + HISTOGRAMS * BUCKETS + LONGS_PER_CACHE_LINE - 1)
+            / LONGS_PER_CACHE_LINE * LONGS_PER_CACHE_LINE + LONGS_PER_CACHE_LINE;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+    void increment(int counter) {
+        add(counter, 1);
+    }
+
+    void add(int counter, long value) {
+        cells.addAndGet(stripe() + counter, value);
+    }
+
+    /**
+     * Records the time passed since startNanos, taken from System.nanoTime()
+     */
+    void recordLatency(int histogram, long startNanos) {
+        long micros = Math.max(1, (System.nanoTime() - startNanos) / 1000);
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        cells.incrementAndGet(stripe() + COUNTERS + histogram * BUCKETS + bucket);
+    }
+
+    long get(int counter) {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * STRIDE + counter);
+        }
+        return sum;
+    }
+
+    long[] getBuckets(int histogram) {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < STRIPES; i++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                buckets[bucket] += cells.get(i * STRIDE + COUNTERS + histogram * BUCKETS + bucket);
+            }
+        }
+        return buckets;
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 8)) & (STRIPES - 1)) * STRIDE;
+    }
+}
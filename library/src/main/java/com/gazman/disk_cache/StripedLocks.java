@@ -0,0 +1,102 @@
+package com.gazman.disk_cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed set of read write locks shared between keys by hash. Reads of a key hold the read lock,
+ * put, delete and eviction of the same key hold the write lock.
+ * <p>
+ * Each stripe also counts the writes that were ever submitted, so reads can tell if a write was
+ * submitted since they started.
+ * <p>
+ * The deadline of the last queued write of each key is kept until that write completes, so writes
+ * and the reads that wait for them are never queued ahead of the earlier writes of their keys.
+ * A key has pending writes exactly while it has such a deadline, so only the reads of that key,
+ * and not of the other keys of its stripe, are ordered after them.
+ */
+class StripedLocks {
+    private final ReadWriteLock[] locks;
+    private final AtomicIntegerArray writeGenerations;
+    private final HashMap<String, Long> writeDeadlines = new HashMap<>();
+
+    /**
+     * @param stripes number of locks, must be a power of two
+     */
+    StripedLocks(int stripes) {
+        locks = new ReadWriteLock[stripes];
+        writeGenerations = new AtomicIntegerArray(stripes);
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    ReadWriteLock get(String key) {
+        return locks[stripe(key)];
+    }
+
+    void beginWrite(String key) {
+        writeGenerations.incrementAndGet(stripe(key));
+    }
+
+    /**
+     * @param deadline the deadline returned by {@link #orderWrite(Collection, long)} for this write
+     */
+    synchronized void endWrite(String key, long deadline) {
+        Long lastDeadline = writeDeadlines.get(key);
+        if (lastDeadline != null && lastDeadline == deadline) {
+            writeDeadlines.remove(key);
+        }
+    }
+
+    /**
+     * @return true if a write of this key was submitted and not completed yet
+     */
+    synchronized boolean hasPendingWrites(String key) {
+        return writeDeadlines.containsKey(key);
+    }
+
+    /**
+     * @return a number that changes each time a write of this key, or of a key sharing its stripe,
+     * is submitted
+     */
+    int getWriteGeneration(String key) {
+        return writeGenerations.get(stripe(key));
+    }
+
+    /**
+     * Orders a write after the pending writes of the same keys. The caller should queue the write
+     * while holding the monitor of this object, so the writes of a key are queued in deadline order.
+     *
+     * @return the given deadline, or a later one if a pending write of these keys has a later deadline
+     */
+    synchronized long orderWrite(Collection<String> keys, long deadline) {
+        for (String key : keys) {
+            Long lastDeadline = writeDeadlines.get(key);
+            if (lastDeadline != null) {
+                deadline = Math.max(deadline, lastDeadline + 1);
+            }
+        }
+        for (String key : keys) {
+            writeDeadlines.put(key, deadline);
+        }
+        return deadline;
+    }
+
+    /**
+     * @return the deadline of the last pending write of this key or 0 if there is none
+     */
+    synchronized long getWriteDeadline(String key) {
+        Long deadline = writeDeadlines.get(key);
+        return deadline != null ? deadline : 0;
+    }
+
+    private int stripe(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & (locks.length - 1);
+    }
+}
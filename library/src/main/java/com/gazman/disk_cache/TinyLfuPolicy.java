@@ -0,0 +1,279 @@
+package com.gazman.disk_cache;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Size aware W-TinyLFU policy. New entries enter a small LRU window, the entries that leave the window
+ * are admitted to the main space only if they were accessed more often than the entries they would
+ * displace there, as estimated by a {@link FrequencySketch}. The main space is a segmented LRU,
+ * entries that are accessed again move from probation to the protected segment. A one-off scan
+ * therefore only displaces other new entries and not the frequently used ones.
+ * <p>
+ * Rejected entries are evicted first, then the probation, protected and window entries, each from
+ * its least recently used end. The sketch and the segment of each entry are persisted between sessions.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class TinyLfuPolicy implements EvictionPolicy {
+    private static final int STATE_VERSION = 1;
+    private static final int REJECTED = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int WINDOW = 3;
+    private static final int[] EVICTION_ORDER = {REJECTED, PROBATION, PROTECTED, WINDOW};
+
+    private final FrequencySketch sketch;
+    private final HashMap<Long, Node> nodes = new HashMap<>();
+    private final Node[] segments = new Node[4];
+    private final long[] segmentSizes = new long[4];
+    private HashMap<Long, Integer> restoredSegments = new HashMap<>();
+    private long windowMax;
+    private long mainMax;
+    private long protectedMax;
+
+    public TinyLfuPolicy() {
+        this(10000);
+    }
+
+    /**
+     * @param expectedEntries number of entries the cache is expected to hold, sizes the frequency sketch
+     */
+    public TinyLfuPolicy(int expectedEntries) {
+        sketch = new FrequencySketch(expectedEntries);
+        for (int i = 0; i < segments.length; i++) {
+            Node sentinel = new Node(0, null, 0);
+            sentinel.next = sentinel;
+            sentinel.prev = sentinel;
+            segments[i] = sentinel;
+        }
+    }
+
+    /**
+     * The window gets 1% of the capacity, the protected segment 80% of the rest
+     */
+    @Override
+    public synchronized void open(File stateFile, long capacity) {
+        windowMax = Math.max(1, capacity / 100);
+        mainMax = capacity - windowMax;
+        protectedMax = mainMax / 10 * 8;
+        if (stateFile.exists()) {
+            readState(stateFile);
+        }
+    }
+
+    @Override
+    public synchronized void onRestore(long rowId, String key, long size) {
+        Integer segment = restoredSegments.get(rowId);
+        if (segment == null || segment < REJECTED || segment > WINDOW) {
+            segment = PROBATION;
+        }
+        link(new Node(rowId, key, size), segment);
+    }
+
+    @Override
+    public synchronized void onAdd(long rowId, String key, long size) {
+        restoredSegments.clear();
+        sketch.increment(key);
+        link(new Node(rowId, key, size), WINDOW);
+        while (segmentSizes[WINDOW] > windowMax) {
+            Node candidate = segments[WINDOW].prev;
+            unlink(candidate);
+            admit(candidate);
+        }
+    }
+
+    @Override
+    public synchronized void onAccess(long rowId, String key) {
+        sketch.increment(key);
+        Node node = nodes.get(rowId);
+        if (node == null) {
+            return;
+        }
+        if (node.segment == REJECTED) {
+            move(node, PROBATION);
+        } else if (node.segment == PROBATION) {
+            move(node, PROTECTED);
+            while (segmentSizes[PROTECTED] > protectedMax) {
+                move(segments[PROTECTED].prev, PROBATION);
+            }
+        } else {
+            move(node, node.segment);
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(long rowId) {
+        Node node = nodes.get(rowId);
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+    @Override
+    public synchronized List<Long> getVictims(int limit, int skip) {
+        ArrayList<Long> victims = new ArrayList<>(Math.min(limit, nodes.size()));
+        int skipped = 0;
+        for (int segment : EVICTION_ORDER) {
+            Node sentinel = segments[segment];
+            for (Node node = sentinel.prev; node != sentinel; node = node.prev) {
+                if (victims.size() == limit) {
+                    return victims;
+                }
+                if (skipped++ >= skip) {
+                    victims.add(node.rowId);
+                }
+            }
+        }
+        return victims;
+    }
+
+    @Override
+    public synchronized void save(File stateFile) {
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(STATE_VERSION);
+            out.writeInt(sketch.table.length);
+            for (long counters : sketch.table) {
+                out.writeLong(counters);
+            }
+            out.writeInt(sketch.additions);
+            out.writeInt(nodes.size());
+            for (Node node : nodes.values()) {
+                out.writeLong(node.rowId);
+                out.writeByte(node.segment);
+            }
+            out.close();
+            if (!tempFile.renameTo(stateFile)) {
+                throw new IOException("Error renaming " + tempFile + " to " + stateFile);
+            }
+        } catch (IOException e) {
+            Log.e("VIF", "Error saving eviction policy state", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Moves the candidate from the window to probation if it is accessed more often than the entries
+     * that would have to make room for it, otherwise the candidate is rejected. Displaced entries are
+     * rejected, so they are the first to be evicted.
+     */
+    private void admit(Node candidate) {
+        long toFree = segmentSizes[PROBATION] + segmentSizes[PROTECTED] + candidate.size - mainMax;
+        if (toFree <= 0) {
+            link(candidate, PROBATION);
+            return;
+        }
+        int frequency = sketch.frequency(candidate.key);
+        ArrayList<Node> victims = new ArrayList<>();
+        for (int segment = PROBATION; segment <= PROTECTED && toFree > 0; segment++) {
+            Node sentinel = segments[segment];
+            for (Node node = sentinel.prev; node != sentinel && toFree > 0; node = node.prev) {
+                if (sketch.frequency(node.key) >= frequency) {
+                    link(candidate, REJECTED);
+                    return;
+                }
+                victims.add(node);
+                toFree -= node.size;
+            }
+        }
+        for (Node victim : victims) {
+            move(victim, REJECTED);
+        }
+        link(candidate, PROBATION);
+    }
+
+    /**
+     * Adds the node as the most recently used of the segment
+     */
+    private void link(Node node, int segment) {
+        Node sentinel = segments[segment];
+        node.segment = segment;
+        node.prev = sentinel;
+        node.next = sentinel.next;
+        sentinel.next.prev = node;
+        sentinel.next = node;
+        segmentSizes[segment] += node.size;
+        nodes.put(node.rowId, node);
+    }
+
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        segmentSizes[node.segment] -= node.size;
+        nodes.remove(node.rowId);
+    }
+
+    private void move(Node node, int segment) {
+        unlink(node);
+        link(node, segment);
+    }
+
+    private void readState(File stateFile) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            if (in.readInt() != STATE_VERSION) {
+                return;
+            }
+            int length = in.readInt();
+            long[] table = new long[length];
+            for (int i = 0; i < length; i++) {
+                table[i] = in.readLong();
+            }
+            int additions = in.readInt();
+            if (length == sketch.table.length) {
+                System.arraycopy(table, 0, sketch.table, 0, length);
+                sketch.additions = additions;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long rowId = in.readLong();
+                restoredSegments.put(rowId, (int) in.readByte());
+            }
+        } catch (IOException e) {
+            Log.e("VIF", "Error reading eviction policy state", e);
+        } finally {
+            close(in);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Node {
+        final long rowId;
+        final String key;
+        final long size;
+        int segment;
+        Node prev;
+        Node next;
+
+        Node(long rowId, String key, long size) {
+            this.rowId = rowId;
+            this.key = key;
+            this.size = size;
+        }
+    }
+}
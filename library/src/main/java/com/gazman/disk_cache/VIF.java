@@ -1,21 +1,38 @@
 package com.gazman.disk_cache;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * Created by Ilya Gazman on 10/15/2017.
@@ -24,34 +41,96 @@ import java.util.concurrent.TimeUnit;
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class VIF {
 
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final int MAX_PENDING_TOUCHES = 256;
+    private static final long TOUCH_FLUSH_DELAY_MILLIS = 5000;
+    static final int LOCK_STRIPES = 64;
+    private static final int READER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int EVICTION_BATCH_SIZE = 64;
+    private static final long CLEANUP_DELAY_MILLIS = 10000;
+    private static final String DECODED_DIR = "decoded";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_IDLE_WRITE_BUFFERS = 4;
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final long MAINTENANCE_SLACK_MILLIS = 2000;
+
+    private PriorityExecutor executor = new PriorityExecutor(1);
+    private PriorityExecutor readers = new PriorityExecutor(READER_THREADS);
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+    private final StripedLocks locks = new StripedLocks(LOCK_STRIPES);
+    private final CountDownLatch ready = new CountDownLatch(1);
     private File cacheDir;
-    private byte[] buffer = new byte[1024 * 10]; // 10 KB buffer
-    private CacheDb cacheDb;
-    private Handler handler = new Handler(Looper.getMainLooper());
-    private long totalSize;
+    private final StatsRecorder stats = new StatsRecorder();
+    private ScheduledFuture<?> statsReporting;
+    private volatile BufferPool bufferPool = new BufferPool(WRITE_BUFFER_SIZE, false, MAX_IDLE_WRITE_BUFFERS);
+    private Journal journal;
+    private volatile Executor callbackExecutor;
+    private final CacheIndex index = new CacheIndex();
+    private final RecencyBuffer recencyBuffer = new RecencyBuffer(MAX_PENDING_TOUCHES);
     private Context context;
     private long maxSize;
+    private long lowWatermark;
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+    private final AtomicLong tempFileCounter = new AtomicLong();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private FileLayout layout = new FileLayout(FileLayout.DEFAULT_LEVELS);
+    private final long createdAtNanos = System.nanoTime();
+    private final String sessionId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong timeToFirstHit = new AtomicLong(-1);
+    private volatile long sizeSnapshot;
+    private volatile ObjectCache objectCache;
+    private final ConcurrentHashMap<Integer, Codec> codecs = new ConcurrentHashMap<>();
+    private volatile Codec codec = Codec.NONE;
+    private long slabThreshold;
+    private SlabStore slabs;
+    private final AtomicBoolean slabCompactionScheduled = new AtomicBoolean();
+    private boolean deduplication;
+    private volatile Verification verification = Verification.NEVER;
+    private final AtomicLong verificationCounter = new AtomicLong();
+    private volatile SizeBudget sizeBudget;
+    private BlobStore blobs;
+    private volatile EvictionPolicy evictionPolicy;
+    private final SingleFlight<ObjectCache.ObjectKey, ObjectRequest> objectFlights = new SingleFlight<>();
+    private final SingleFlight<String, ObjectRequest> loadFlights = new SingleFlight<>();
+    private final ConcurrentHashMap<String, InFlightWrite> inFlightWrites = new ConcurrentHashMap<>();
 
     /**
      * Creates or restores the cache from given db state.
      *
      * @param context app context
      * @param dbName  Database name to be used by the cache service
-     * @param maxSize maximum cache size
+     * @param maxSize maximum cache size, once it is exceeded least recently used entries are
+     *                evicted in the background until the size drops to 90% of maxSize
      */
     public VIF(Context context, String dbName, long maxSize) {
-        this.context = context.getApplicationContext();
+        this(context.getApplicationContext(), new CacheDb(context, dbName), maxSize);
+    }
+
+    /**
+     * Creates or restores the cache in the given directory, the journal is kept in an append only
+     * log inside it instead of SQLite, so this cache does not need Android to run.
+     *
+     * @param cacheDir directory of the cache entries and the journal
+     * @param maxSize  maximum cache size, once it is exceeded least recently used entries are
+     *                 evicted in the background until the size drops to 90% of maxSize
+     */
+    public VIF(File cacheDir, long maxSize) {
+        this(null, new LogJournal(new File(cacheDir, "journal")), maxSize);
+        this.cacheDir = cacheDir;
+    }
+
+    VIF(Context context, Journal journal, long maxSize) {
+        this.context = context;
+        this.journal = journal;
         this.maxSize = maxSize;
-        cacheDb = new CacheDb(context, dbName);
-        executor.execute(() -> {
-            removeKeys(cacheDb.getCorruptedFiles());
-            totalSize = cacheDb.getTotalSize();
-        });
+        lowWatermark = maxSize / 10 * 9;
+        registerCodec(Codec.NONE);
+        registerCodec(Codec.DEFLATE);
+        timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
     }
 
     /**
-     * Sets the cache dir, if not set the default is context.getExternalCacheDir()
+     * Sets the cache dir, if not set the default is context.getExternalCacheDir().
+     * Should be called before the first cache operation.
      *
      * @param cacheDir cache dir directory, if null or if not set then context.getExternalCacheDir() will be used
      */
@@ -59,6 +138,147 @@ public class VIF {
         this.cacheDir = cacheDir;
     }
 
+    /**
+     * Sets how many levels of sub directories the entries are spread over, each level holds
+     * up to 256 directories. Existing caches are migrated to the new layout on startup.
+     * Should be called before the first cache operation.
+     *
+     * @param levels between 0, all the entries in the cache dir, and 3, default is 2
+     */
+    public void setDirectoryLevels(int levels) {
+        if (levels < 0 || levels > FileLayout.MAX_LEVELS) {
+            throw new IllegalArgumentException("levels must be between 0 and " + FileLayout.MAX_LEVELS);
+        }
+        layout = new FileLayout(levels);
+    }
+
+    /**
+     * Sets the size the cache is trimmed down to once it grows beyond maxSize. Evicting below maxSize
+     * gives the cache room to absorb new puts without running eviction for each one of them.
+     *
+     * @param lowWatermark size in bytes, between 0 and maxSize, default is 90% of maxSize
+     */
+    public void setLowWatermark(long lowWatermark) {
+        this.lowWatermark = Math.max(0, Math.min(lowWatermark, maxSize));
+    }
+
+    /**
+     * Makes the cache one of the shards of the given budget, the budget decides when it is evicted
+     * and how much. Should be called before the first cache operation.
+     */
+    void setSizeBudget(SizeBudget sizeBudget) {
+        this.sizeBudget = sizeBudget;
+        sizeBudget.addShard(this);
+    }
+
+    /**
+     * Sets the policy that picks the entries to evict. The default evicts the least recently used
+     * entries, {@link TinyLfuPolicy} keeps the frequently used ones through scans of new keys.
+     * Should be called before the first cache operation.
+     *
+     * @param evictionPolicy the policy or null for the default
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Packs entries up to the given size into shared slab files instead of a file per entry,
+     * which saves the file system overhead of many small entries. A packed entry is copied into
+     * its own file the first time it is read as a file. Should be called before the first cache operation.
+     *
+     * @param maxEntrySize stored size in bytes, 0, the default, disables packing
+     */
+    public void setSlabThreshold(long maxEntrySize) {
+        slabThreshold = Math.max(0, Math.min(maxEntrySize, SlabStore.SLAB_SIZE));
+    }
+
+    /**
+     * Stores identical content only once. Each put is hashed while it is written, entries with the same
+     * content and codec point to a single shared blob that counts against maxSize once and is deleted
+     * with the last entry that points to it. Entries that are packed into slabs are not deduplicated.
+     * The file of {@link #getAsFile(String, FileCallback)} may be shared by several keys, never modify it.
+     * Should be called before the first cache operation.
+     *
+     * @param enabled true to deduplicate new entries, default is false
+     */
+    public void setDeduplication(boolean enabled) {
+        deduplication = enabled;
+    }
+
+    /**
+     * Sets how the stored bytes are verified. Unless it is {@link Verification#NEVER}, puts compute
+     * a CRC32C checksum while they are written and keep it in the journal. Streams check it as they
+     * are read, file and object reads check it before the file is returned. Entries that fail the
+     * check are removed from the cache and the read misses. Entries written while it was NEVER
+     * have no checksum and are never verified.
+     *
+     * @param verification default is {@link Verification#NEVER}
+     */
+    public void setVerification(Verification verification) {
+        this.verification = verification;
+    }
+
+    /**
+     * Sets the buffers used to copy the put streams into the cache. Puts from a file or a
+     * FileChannel are copied by the file system and do not use them.
+     *
+     * @param bufferSize size of each buffer in bytes, default is 64 KB
+     * @param direct     if true the buffers are allocated outside of the heap, default is false
+     */
+    public void setWriteBuffers(int bufferSize, boolean direct) {
+        bufferPool = new BufferPool(bufferSize, direct, MAX_IDLE_WRITE_BUFFERS);
+    }
+
+    /**
+     * Sets the codec new entries are encoded with. Entries are decoded by the codec they were
+     * written with, so changing it does not affect the existing entries. The stored size is what
+     * counts against maxSize.
+     * <p>
+     * Reads are transparent, {@link #openInputStream(String, StreamCallback)} and
+     * {@link #openEntry(String, EntryCallback)} decode while reading, while {@link #getAsFile(String, FileCallback)}
+     * and {@link ParserCallback#parse(File)} get a decoded copy of the entry. The copy is made on the first
+     * such read, is not counted against maxSize and is removed with the entry or on the next start,
+     * so entries that are mostly read as files are better stored with {@link Codec#NONE}.
+     *
+     * @param codec {@link Codec#NONE}, the default, {@link Codec#DEFLATE} or a registered codec
+     */
+    public void setCodec(Codec codec) {
+        registerCodec(codec);
+        this.codec = codec;
+    }
+
+    /**
+     * Registers a custom codec, so entries written with it can be decoded.
+     * Should be called before the first cache operation.
+     */
+    public void registerCodec(Codec codec) {
+        codecs.put(codec.getId(), codec);
+    }
+
+    /**
+     * Keeps the results of {@link #getAsObject(String, ParserCallback)} in memory, so repeated reads
+     * of the same key skip the disk and the parsing. Results are kept per key and parser class and are
+     * dropped when the key is put again, deleted or evicted.
+     *
+     * @param maxWeight total weight of the kept results, 0 disables the memory cache
+     * @param weigher   weight of each result, usually its approximate size in bytes
+     */
+    public void setMemoryCache(long maxWeight, Weigher weigher) {
+        objectCache = maxWeight > 0 ? new ObjectCache(maxWeight, weigher) : null;
+    }
+
+    /**
+     * Sets the executor all the callbacks are delivered on. Background consumers can pass
+     * {@code Runnable::run} to get the callbacks on the cache threads without a main thread hop,
+     * such callbacks should return quickly. The futures of the async methods do not use it.
+     *
+     * @param executor callback executor, null or if not set the callbacks are posted to the main thread
+     */
+    public void setCallbackExecutor(Executor executor) {
+        callbackExecutor = executor;
+    }
+
     /**
      * Asynchronously adds entry to the cache
      *
@@ -79,19 +299,133 @@ public class VIF {
      * @param completeCallback will be called once the writing is complete
      */
     public void put(final String key, final InputStream inputStream, final Runnable completeCallback) {
-        executor.execute(() -> {
-            long k = cacheDb.prepareKey(key);
-            File file = toFile(k);
-            saveFile(key, file, inputStream);
-            long fileSize = file.length();
-            cacheDb.finalizeKey(k, fileSize);
-            totalSize += fileSize;
-            if (completeCallback != null) {
-                handler.post(completeCallback);
-            }
-            if (totalSize > maxSize) {
-                freeSpace();
+        put(key, inputStream, codec, completeCallback);
+    }
+
+    /**
+     * Add entry to the cache, encoded with the given codec
+     *
+     * @param key              any String value will do, there is no restriction on the name
+     * @param inputStream      cache source, all the exceptions will be handled quietly
+     *                         and stream will be closed once the reading is complete
+     * @param codec            codec of this entry, see {@link #setCodec(Codec)}
+     * @param completeCallback will be called once the writing is complete
+     */
+    public void put(final String key, final InputStream inputStream, final Codec codec,
+                    final Runnable completeCallback) {
+        runWhenDone(put(key, toChannel(inputStream), codec, Priority.NORMAL), completeCallback);
+    }
+
+    /**
+     * Add entry to the cache with the given scheduling priority
+     *
+     * @param key              any String value will do, there is no restriction on the name
+     * @param inputStream      cache source, all the exceptions will be handled quietly
+     *                         and stream will be closed once the reading is complete
+     * @param priority         {@link Priority#LOW} for prefetching, default is {@link Priority#NORMAL}
+     * @param completeCallback will be called once the writing is complete
+     */
+    public void put(final String key, final InputStream inputStream, final Priority priority,
+                    final Runnable completeCallback) {
+        runWhenDone(put(key, toChannel(inputStream), codec, priority), completeCallback);
+    }
+
+    /**
+     * Add entry to the cache from a channel, a FileChannel is copied by the file system
+     *
+     * @param key              any String value will do, there is no restriction on the name
+     * @param channel          cache source, all the exceptions will be handled quietly
+     *                         and the channel will be closed once the reading is complete
+     * @param completeCallback will be called once the writing is complete
+     */
+    public void put(final String key, final ReadableByteChannel channel, final Runnable completeCallback) {
+        runWhenDone(put(key, channel, codec, Priority.NORMAL), completeCallback);
+    }
+
+    /**
+     * Same as {@link #put(String, InputStream, Runnable)}, but returns a future instead of
+     * using the callback executor
+     *
+     * @return future of the put, true if the entry was added
+     */
+    public CacheFuture<Boolean> putAsync(final String key, final InputStream inputStream) {
+        return putAsync(key, inputStream, Priority.NORMAL);
+    }
+
+    /**
+     * Same as {@link #putAsync(String, InputStream)} with the given scheduling priority
+     *
+     * @param priority {@link Priority#LOW} for prefetching, default is {@link Priority#NORMAL}
+     */
+    public CacheFuture<Boolean> putAsync(final String key, final InputStream inputStream, Priority priority) {
+        return put(key, toChannel(inputStream), codec, priority);
+    }
+
+    private CacheFuture<Boolean> put(final String key, final ReadableByteChannel channel, final Codec codec,
+                                     Priority priority) {
+        registerCodec(codec);
+        final CacheFuture<Boolean> future = new CacheFuture<>();
+        final InFlightWrite inFlight = new InFlightWrite(key, codec);
+        executeWrite(Collections.singletonList(key), priority, inFlight, () -> {
+            long start = System.nanoTime();
+            boolean added = false;
+            try {
+                PendingPut pendingPut = savePut(key, channel, codec, inFlight);
+                added = pendingPut != null && !commitPuts(Collections.singletonList(pendingPut)).isEmpty();
+            } finally {
+                inFlightWrites.remove(key, inFlight);
+                inFlight.finish(added);
+                stats.recordLatency(StatsRecorder.PUT_LATENCY, start);
+                future.complete(added);
+            }
+            scheduleEviction();
+        });
+        return future;
+    }
+
+    /**
+     * Adds all the entries to the cache with a single journal commit and a single eviction pass
+     *
+     * @param entries  keys and their cache sources, all the streams will be closed
+     *                 once the reading is complete
+     * @param callback optional, will be called once all the entries are written with the
+     *                 result of each key, true if it was added
+     */
+    public void putAll(final Map<String, InputStream> entries, final BulkCallback<Boolean> callback) {
+        putAll(entries, Priority.NORMAL, callback);
+    }
+
+    /**
+     * Same as {@link #putAll(Map, BulkCallback)} with the given scheduling priority
+     *
+     * @param priority {@link Priority#LOW} for prefetching, default is {@link Priority#NORMAL}
+     */
+    public void putAll(final Map<String, InputStream> entries, Priority priority,
+                       final BulkCallback<Boolean> callback) {
+        executeWrite(entries.keySet(), priority, () -> {
+            long start = System.nanoTime();
+            final HashMap<String, Boolean> results = new HashMap<>();
+            for (String key : entries.keySet()) {
+                results.put(key, false);
+            }
+            try {
+                ArrayList<PendingPut> pendingPuts = new ArrayList<>(entries.size());
+                for (Map.Entry<String, InputStream> entry : entries.entrySet()) {
+                    PendingPut pendingPut = savePut(entry.getKey(), toChannel(entry.getValue()), codec, null);
+                    if (pendingPut != null) {
+                        pendingPuts.add(pendingPut);
+                    }
+                }
+                for (CacheIndex.Entry entry : commitPuts(pendingPuts)) {
+                    results.put(entry.key, true);
+                }
+            } finally {
+                stats.recordLatency(StatsRecorder.PUT_LATENCY, start);
+                if (callback != null) {
+                    getCallbackExecutor().execute(() -> callback.onResult(results));
+                }
             }
+            scheduleEviction();
         });
     }
 
@@ -101,17 +435,57 @@ public class VIF {
      * @param key key to be deleted
      */
     public void delete(final String key) {
-        executor.execute(() -> {
-            int k = cacheDb.prepareKey(key);
-            if (k == -1) {
-                return;
+        deleteAsync(key);
+    }
+
+    /**
+     * Deletes the given key
+     *
+     * @param key key to be deleted
+     * @return future of the delete, true if the key was found and deleted
+     */
+    public CacheFuture<Boolean> deleteAsync(final String key) {
+        final CacheFuture<Boolean> future = new CacheFuture<>();
+        executeWrite(key, Priority.NORMAL, () -> {
+            boolean deleted = false;
+            try {
+                CacheIndex.Entry entry = index.get(key);
+                deleted = entry != null && !removeKeys(Collections.singletonList((int) entry.rowId)).isEmpty();
+            } finally {
+                future.complete(deleted);
             }
-            totalSize = cacheDb.getTotalSize();
-            File file = toFile(k);
-            if (deleteFile(file)) {
-                cacheDb.deleteKeys(Collections.singletonList(k));
-            } else {
-                logErrorDeletingFile(file);
+        });
+        return future;
+    }
+
+    /**
+     * Deletes all the given keys with a single journal statement
+     *
+     * @param keys     keys to be deleted
+     * @param callback optional, will be called once done with the result of each key,
+     *                 true if it was found and deleted
+     */
+    public void deleteAll(final Collection<String> keys, final BulkCallback<Boolean> callback) {
+        executeWrite(keys, Priority.NORMAL, () -> {
+            final HashMap<String, Boolean> results = new HashMap<>();
+            for (String key : keys) {
+                results.put(key, false);
+            }
+            try {
+                ArrayList<Integer> rowIds = new ArrayList<>(keys.size());
+                for (String key : keys) {
+                    CacheIndex.Entry entry = index.get(key);
+                    if (entry != null) {
+                        rowIds.add((int) entry.rowId);
+                    }
+                }
+                for (CacheIndex.Entry entry : removeKeys(rowIds)) {
+                    results.put(entry.key, true);
+                }
+            } finally {
+                if (callback != null) {
+                    getCallbackExecutor().execute(() -> callback.onResult(results));
+                }
             }
         });
     }
@@ -125,142 +499,1714 @@ public class VIF {
      * @param callback callback for fetching the file
      */
     public void getAsFile(final String key, final FileCallback callback) {
-        executor.execute(() -> {
-            long k = cacheDb.getKey(key);
-            final File file = k != -1 ? toFile(k) : null;
-            handler.post(() -> callback.onResult(file));
+        getAsFile(key, Priority.HIGH, callback);
+    }
+
+    /**
+     * Same as {@link #getAsFile(String, FileCallback)} with the given scheduling priority
+     *
+     * @param priority {@link Priority#LOW} for prefetching, default is {@link Priority#HIGH}
+     */
+    public void getAsFile(final String key, Priority priority, final FileCallback callback) {
+        getAsFileAsync(key, priority).addListener((file, error) -> callback.onResult(file), getCallbackExecutor());
+    }
+
+    /**
+     * Same as {@link #getAsFile(String, FileCallback)}, but returns a future instead of
+     * using the callback executor
+     *
+     * @return future of the file, null if there is no such entry
+     */
+    public CacheFuture<File> getAsFileAsync(final String key) {
+        return getAsFileAsync(key, Priority.HIGH);
+    }
+
+    /**
+     * Same as {@link #getAsFileAsync(String)} with the given scheduling priority
+     *
+     * @param priority {@link Priority#LOW} for prefetching, default is {@link Priority#HIGH}
+     */
+    public CacheFuture<File> getAsFileAsync(final String key, Priority priority) {
+        final CacheFuture<File> future = new CacheFuture<>();
+        executeRead(key, priority, () -> {
+            File file = null;
+            Lock lock = locks.get(key).readLock();
+            lock.lock();
+            try {
+                CacheIndex.Entry entry = getEntry(key);
+                file = entry != null ? getDecodedFile(entry) : null;
+            } finally {
+                lock.unlock();
+                future.complete(file);
+            }
         });
+        return future;
     }
 
     /**
-     * This is a save way to retrieve a cache entry, callback will be used to parse the file on
-     * the cache thread, it will block all the other actions untill parsing is complete.
-     * The callback.onResult will be delivered on the main thread
+     * Same as {@link #getAsFile(String, FileCallback)} for many keys at once, all the keys are
+     * resolved by a single reader task
      *
-     * @param key      cache entry key
-     * @param callback result and parsing callback
-     * @param <T>      Result type
+     * @param keys     cache entry keys
+     * @param callback receives the file of each key, or null for missing keys
      */
-    public <T> void getAsObject(final String key, final ParserCallback<T> callback) {
-        executor.execute(() -> {
-            long k = cacheDb.getKey(key);
-            if (k == -1) {
-                handler.post(() -> callback.onResult(null));
-                return;
+    public void getAll(final Collection<String> keys, final BulkCallback<File> callback) {
+        executeRead(keys, Priority.HIGH, () -> {
+            final HashMap<String, File> results = new HashMap<>();
+            for (String key : keys) {
+                results.put(key, null);
             }
-            final File file = toFile(k);
-            final T result;
             try {
-                result = callback.parse(file);
-                handler.post(() -> callback.onResult(result));
-            } catch (final Throwable e) {
-                e.printStackTrace();
-                handler.post(() -> callback.onError(e));
+                for (String key : keys) {
+                    Lock lock = locks.get(key).readLock();
+                    lock.lock();
+                    try {
+                        CacheIndex.Entry entry = getEntry(key);
+                        results.put(key, entry != null ? getDecodedFile(entry) : null);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } finally {
+                getCallbackExecutor().execute(() -> callback.onResult(results));
             }
-
         });
     }
 
     /**
-     * Asynchronously shut down the cache, any request to the cache after this call may fail
+     * Opens a pinned, read only view of the cache entry and moves it to the top of the queue.
+     * While the view is open the entry will not be evicted, and put or delete of the same key
+     * will not affect it. The callback receives null if there is no such entry, otherwise it
+     * must close the entry once done.
+     *
+     * @param key      cache entry key
+     * @param callback callback for receiving the entry
      */
-    public void shutDown() {
-        executor.execute(() -> {
-            cacheDb.close();
-            cacheDb = null;
+    public void openEntry(final String key, final EntryCallback callback) {
+        executeRead(key, Priority.HIGH, () -> {
+            CacheEntry entry = null;
+            try {
+                entry = pin(key);
+            } finally {
+                final CacheEntry pinnedEntry = entry;
+                getCallbackExecutor().execute(() -> callback.onResult(pinnedEntry));
+            }
         });
-        executor.shutdown();
     }
 
     /**
-     * Synchronously shut down the cache, any request to the cache after this call will fail
+     * Opens the cache entry as a stream, same as {@link #openEntry(String, EntryCallback)}
+     * the entry stays pinned until the stream is closed.
+     * <p>
+     * If a put of the key is in flight, the stream serves its bytes as they are written without
+     * waiting for the put to complete. Reads block until more bytes are written, the stream ends once
+     * the put is committed and it throws an IOException if the put is aborted.
+     *
+     * @param key      cache entry key
+     * @param callback callback for receiving the stream, it will receive null if there is no such entry
      */
-    public void shutDownAndWait() {
-        if (!executor.isShutdown()) {
-            shutDown();
-        }
-        try {
-            executor.awaitTermination(2, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    public void openInputStream(final String key, final StreamCallback callback) {
+        final InputStream tailingStream = openInFlight(key);
+        if (tailingStream != null) {
+            getCallbackExecutor().execute(() -> callback.onResult(tailingStream));
+            return;
         }
+        executeRead(key, Priority.HIGH, () -> {
+            InputStream stream = null;
+            try {
+                CacheEntry entry = pin(key);
+                if (entry != null) {
+                    try {
+                        stream = entry.openOwningStream();
+                    } catch (IOException e) {
+                        Log.e("VIF", "Error decoding entry " + key, e);
+                        entry.close();
+                    }
+                }
+            } finally {
+                final InputStream inputStream = stream;
+                getCallbackExecutor().execute(() -> callback.onResult(inputStream));
+            }
+        });
     }
 
-    private void freeSpace() {
-        removeKeys(cacheDb.getKeysToDelete(maxSize));
+    /**
+     * This is a save way to retrieve a cache entry, callback will be used to parse the file on
+     * one of the reader threads. Reads of different keys are parsed in parallel, put and delete
+     * of the same key will wait until parsing is complete.
+     * The callback.onResult will be delivered on the callback executor, the main thread by default
+     *
+     * @param key      cache entry key
+     * @param callback result and parsing callback
+     * @param <T>      Result type
+     */
+    public <T> void getAsObject(final String key, final ParserCallback<T> callback) {
+        deliver(getAsObject(key, Priority.HIGH, callback, null), callback);
     }
 
-    private void logErrorDeletingFile(File file) {
-        Log.e("VIF", "Error removing file " + file + ". Will retry on next reboot");
+    /**
+     * Same as {@link #getAsObject(String, ParserCallback)} with the given scheduling priority
+     *
+     * @param priority {@link Priority#LOW} for prefetching, default is {@link Priority#HIGH}
+     */
+    public <T> void getAsObject(final String key, Priority priority, final ParserCallback<T> callback) {
+        deliver(getAsObject(key, priority, callback, null), callback);
     }
 
-    private boolean deleteFile(File file) {
-        return !file.exists() || file.delete();
+    /**
+     * Same as {@link #getAsObject(String, ParserCallback)}, but returns a future instead of
+     * using the callback executor
+     *
+     * @param parser called on one of the reader threads
+     * @return future of the parsed result, null if there is no such entry
+     */
+    public <T> CacheFuture<T> getAsObjectAsync(final String key, final Parser<T> parser) {
+        return getAsObject(key, Priority.HIGH, parser, null);
     }
 
-    private File toFile(long k) {
-        if (cacheDir == null) {
-            cacheDir = context.getExternalCacheDir();
-        }
-        return new File(cacheDir, k + ".vif");
+    /**
+     * Same as {@link #getAsObjectAsync(String, Parser)} with the given scheduling priority
+     *
+     * @param priority {@link Priority#LOW} for prefetching, default is {@link Priority#HIGH}
+     */
+    public <T> CacheFuture<T> getAsObjectAsync(final String key, Priority priority, final Parser<T> parser) {
+        return getAsObject(key, priority, parser, null);
     }
 
-    private void removeKeys(List<Integer> keys) {
-        ArrayList<Integer> cleanedKeys = new ArrayList<>();
-        for (int key : keys) {
-            File file = toFile(key);
-            if (deleteFile(file)) {
-                cleanedKeys.add(key);
-            } else {
-                logErrorDeletingFile(file);
-            }
-        }
-        cacheDb.deleteKeys(cleanedKeys);
+    /**
+     * Same as {@link #getAsObject(String, ParserCallback)}, but if the key is missing it is loaded,
+     * put in the cache and then parsed. Concurrent misses of the same key share a single load and put.
+     *
+     * @param key      cache entry key
+     * @param loader   source of the entry, called on a background thread
+     * @param callback result and parsing callback
+     * @param <T>      Result type
+     */
+    public <T> void getOrLoad(final String key, final Loader loader, final ParserCallback<T> callback) {
+        deliver(getAsObject(key, Priority.HIGH, callback, loader), callback);
     }
 
-    private void saveFile(String originalKey, File file, InputStream inputStream) {
-        FileOutputStream outputStream = null;
-        try {
-            outputStream = new FileOutputStream(file, false);
-            int count;
-            while ((count = inputStream.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, count);
-            }
-            outputStream.close();
-        } catch (IOException e) {
-            Log.e("diskCache", "Error saving file " + originalKey);
-        } finally {
-            close(outputStream);
-            close(inputStream);
-        }
+    /**
+     * Same as {@link #getOrLoad(String, Loader, ParserCallback)} with the given scheduling priority,
+     * the load and the put of a missing key get the same priority
+     *
+     * @param priority {@link Priority#LOW} for prefetching, default is {@link Priority#HIGH}
+     */
+    public <T> void getOrLoad(final String key, final Loader loader, Priority priority,
+                              final ParserCallback<T> callback) {
+        deliver(getAsObject(key, priority, callback, loader), callback);
     }
 
-    private void close(Closeable outputStream) {
-        try {
-            if (outputStream != null) {
-                outputStream.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Preloads the most recently used entries at {@link Priority#LOW}, so after a restart the first
+     * reads of the hot entries do not wait for the index to load or for a cold disk. Entries are ranked
+     * by their last used time, which is their creation time until they are first read. Warming neither
+     * counts as a hit nor changes the recency of the entries.
+     * <p>
+     * Unlike the other futures, cancelling the returned future also stops the warm-up before its next entry.
+     *
+     * @param maxEntries maximum number of entries to warm
+     * @param maxBytes   maximum total stored size of the warmed entries, entries that do not fit are skipped
+     * @return future of the number of entries and bytes that were read into the OS page cache
+     */
+    public CacheFuture<WarmUpResult> warmUp(int maxEntries, long maxBytes) {
+        return scheduleWarmUp(maxEntries, maxBytes, null);
     }
 
     /**
-     * Callback interface for retrieving the file
+     * Same as {@link #warmUp(int, long)}, but the entries are also parsed into the memory cache,
+     * so {@link #getAsObject(String, ParserCallback)} with a parser of the same type returns them without
+     * touching the disk. Without {@link #setMemoryCache(long, Weigher)} the entries are only read.
      */
-    public interface FileCallback {
-        void onResult(File file);
+    public <T> CacheFuture<WarmUpResult> warmUp(int maxEntries, long maxBytes, Parser<T> parser) {
+        return scheduleWarmUp(maxEntries, maxBytes, parser);
     }
 
     /**
-     * Callback interface for parsing and retrieving the T result
+     * Asynchronously shut down the cache, any request to the cache after this call may fail
      */
-    public interface ParserCallback<T> {
+    public void shutDown() {
+        timer.shutdownNow();
+        // Runs last, so the reads that are queued behind writes reach the readers before they shut down
+        executor.execute(() -> {
+            readers.shutdown();
+            try {
+                readers.awaitTermination(2, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            flushRecency();
+            if (slabs != null) {
+                slabs.close();
+            }
+            if (evictionPolicy != null) {
+                evictionPolicy.save(getPolicyFile());
+            }
+            journal.close();
+            journal = null;
+        }, PriorityExecutor.LAST);
+        executor.shutdown();
+    }
+
+    /**
+     * Returns how long it took from creating the cache until the first cache hit,
+     * useful for tracking startup regressions
+     *
+     * @return time in milliseconds or -1 if there was no hit yet
+     */
+    public long getTimeToFirstHitMillis() {
+        return timeToFirstHit.get();
+    }
+
+    /**
+     * @return snapshot of the cache statistics, it is cheap enough to call often
+     */
+    public CacheStats getStats() {
+        return new CacheStats(stats, getTotalSize(), maxSize, executor.getQueue().size(),
+                readers.getQueue().size());
+    }
+
+    /**
+     * Reports the statistics periodically on the main thread
+     *
+     * @param listener     will receive the stats, null stops the reporting
+     * @param periodMillis time between the reports
+     */
+    public synchronized void setStatsListener(final StatsListener listener, long periodMillis) {
+        if (statsReporting != null) {
+            statsReporting.cancel(false);
+            statsReporting = null;
+        }
+        if (listener != null) {
+            statsReporting = timer.scheduleWithFixedDelay(() -> {
+                final CacheStats cacheStats = getStats();
+                getCallbackExecutor().execute(() -> listener.onStats(cacheStats));
+            }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Synchronously shut down the cache, any request to the cache after this call will fail
+     */
+    public void shutDownAndWait() {
+        if (!executor.isShutdown()) {
+            shutDown();
+        }
+        try {
+            readers.awaitTermination(2, TimeUnit.MINUTES);
+            executor.awaitTermination(2, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Looks up the key in the in memory index and marks it as recently used. While the index
+     * is still loading, missing keys are looked up in the journal. Should be called while
+     * holding the read lock of the key.
+     *
+     * @return the entry or null if there is no finalized entry for this key
+     */
+    private CacheIndex.Entry getEntry(String key) {
+        CacheIndex.Entry entry = index.get(key);
+        if (entry == null && !index.isLoaded()) {
+            entry = journal.getEntry(key);
+            if (entry != null) {
+                entry = index.putIfAbsent(entry);
+            }
+        }
+        if (entry == null) {
+            stats.increment(StatsRecorder.MISSES);
+            return null;
+        }
+        stats.increment(StatsRecorder.HITS);
+        stats.add(StatsRecorder.BYTES_READ, entry.size);
+        if (timeToFirstHit.get() == -1) {
+            timeToFirstHit.compareAndSet(-1, (System.nanoTime() - createdAtNanos) / 1000000);
+        }
+        boolean firstTouch = recencyBuffer.isEmpty();
+        entry.lastUsed = System.currentTimeMillis();
+        try {
+            if (recencyBuffer.touch(entry.rowId, entry.lastUsed)) {
+                executeMaintenance(this::flushRecency);
+            } else if (firstTouch) {
+                timer.schedule(() -> executeMaintenance(this::flushRecency), TOUCH_FLUSH_DELAY_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // Shutting down, shutDown flushes the buffer on its own
+        }
+        evictionPolicy.onAccess(entry.rowId, entry.key);
+        return entry;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CacheFuture<T> getAsObject(String key, Priority priority, Parser<T> parser, Loader loader) {
+        CacheFuture<T> future = new CacheFuture<>();
+        getAsObject(key, new ObjectRequest((Parser<Object>) parser, (CacheFuture<Object>) future, loader, priority));
+        return future;
+    }
+
+    /**
+     * Concurrent requests of the same key and parser type are served by a single lookup and parse
+     */
+    private void getAsObject(final String key, ObjectRequest request) {
+        final Parser<Object> parser = request.parser;
+        final ObjectCache.ObjectKey flightKey = new ObjectCache.ObjectKey(key, parser.getClass());
+        final SingleFlight.Flight<ObjectRequest> flight = objectFlights.join(flightKey,
+                locks.getWriteGeneration(key), request);
+        if (flight == null) {
+            return;
+        }
+        executeRead(key, request.priority, () -> {
+            CacheIndex.Entry entry = null;
+            Object result = null;
+            Throwable error = null;
+            Lock lock = locks.get(key).readLock();
+            lock.lock();
+            try {
+                entry = getEntry(key);
+                if (entry != null) {
+                    ObjectCache objectCache = this.objectCache;
+                    result = objectCache != null ? objectCache.get(key, parser.getClass(), entry.rowId) : null;
+                    if (result == null) {
+                        File file = getDecodedFile(entry);
+                        long start = System.nanoTime();
+                        result = file != null ? parser.parse(file) : null;
+                        stats.recordLatency(StatsRecorder.PARSE_LATENCY, start);
+                        if (objectCache != null && result != null) {
+                            objectCache.put(key, parser.getClass(), entry.rowId, result);
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+                error = e;
+            } finally {
+                lock.unlock();
+            }
+            for (ObjectRequest objectRequest : objectFlights.land(flightKey, flight)) {
+                if (error != null) {
+                    objectRequest.future.completeExceptionally(error);
+                } else if (entry == null && objectRequest.loader != null) {
+                    load(key, objectRequest);
+                } else {
+                    objectRequest.future.complete(result);
+                }
+            }
+        });
+    }
 
+    /**
+     * Delivers the result of the future to the callback on the callback executor
+     */
+    private <T> void deliver(CacheFuture<T> future, final ParserCallback<T> callback) {
+        future.addListener((result, error) -> {
+            if (error != null) {
+                callback.onError(error);
+            } else {
+                callback.onResult(result);
+            }
+        }, getCallbackExecutor());
+    }
+
+    /**
+     * Runs the callback on the callback executor once the future is complete
+     */
+    private void runWhenDone(CacheFuture<?> future, final Runnable callback) {
+        if (callback != null) {
+            future.addListener((result, error) -> callback.run(), getCallbackExecutor());
+        }
+    }
+
+    private Executor getCallbackExecutor() {
+        Executor executor = callbackExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if (callbackExecutor == null) {
+                    callbackExecutor = new MainThreadExecutor();
+                }
+                executor = callbackExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Loads the missing key once for all the concurrent callers, puts it and then parses it
+     * for each one of them
+     */
+    private void load(final String key, ObjectRequest request) {
+        final SingleFlight.Flight<ObjectRequest> flight = loadFlights.join(key, 0, request);
+        if (flight == null) {
+            return;
+        }
+        final Loader loader = request.loader;
+        final Priority priority = request.priority;
+        readers.execute(() -> {
+            final InputStream inputStream;
+            try {
+                inputStream = loader.load(key);
+            } catch (Throwable e) {
+                e.printStackTrace();
+                for (ObjectRequest loadRequest : loadFlights.land(key, flight)) {
+                    loadRequest.future.completeExceptionally(e);
+                }
+                return;
+            }
+            if (inputStream == null) {
+                for (ObjectRequest loadRequest : loadFlights.land(key, flight)) {
+                    loadRequest.future.complete(null);
+                }
+                return;
+            }
+            put(key, toChannel(inputStream), codec, priority).addListener((added, error) -> {
+                for (ObjectRequest loadRequest : loadFlights.land(key, flight)) {
+                    getAsObject(key, new ObjectRequest(loadRequest.parser, loadRequest.future, null,
+                            loadRequest.priority));
+                }
+            }, Runnable::run);
+        }, readers.deadline(priority.slackMillis));
+    }
+
+    /**
+     * @return a tailing stream of the put of this key that is in flight, decoded by its codec,
+     * or null if there is no such put
+     */
+    private InputStream openInFlight(String key) {
+        InFlightWrite inFlight = inFlightWrites.get(key);
+        InputStream stream = inFlight != null ? inFlight.openStream() : null;
+        if (stream == null) {
+            return null;
+        }
+        try {
+            return inFlight.codec.decode(stream);
+        } catch (IOException e) {
+            Log.e("VIF", "Error decoding entry " + key, e);
+            close(stream);
+            return null;
+        }
+    }
+
+    private CacheEntry pin(String key) {
+        Lock lock = locks.get(key).readLock();
+        lock.lock();
+        try {
+            CacheIndex.Entry entry = getEntry(key);
+            if (entry == null) {
+                return null;
+            }
+            Codec codec = codecs.get(entry.codec);
+            if (codec == null) {
+                Log.e("VIF", "Unknown codec " + entry.codec + " of entry " + key);
+                return null;
+            }
+            final CacheIndex.Entry pinnedEntry = entry;
+            Runnable onCorrupted = shouldVerify(entry) ? () -> quarantine(pinnedEntry) : null;
+            entry.pins.incrementAndGet();
+            try {
+                if (entry.slab != 0) {
+                    return new CacheEntry(key, entry, slabs.toFile(entry.slab), entry.offset, codec, onCorrupted);
+                }
+                File file = entry.hash != null ? blobs.toFile(entry.hash) : toFile(entry.rowId);
+                return new CacheEntry(key, entry, file, 0, codec, onCorrupted);
+            } catch (IOException e) {
+                entry.pins.decrementAndGet();
+                Log.e("VIF", "Error opening entry " + key, e);
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CacheFuture<WarmUpResult> scheduleWarmUp(final int maxEntries, final long maxBytes,
+                                                   final Parser<?> parser) {
+        ensureStarted();
+        final CacheFuture<WarmUpResult> future = new CacheFuture<>();
+        final long deadline = readers.deadline(Priority.LOW.slackMillis);
+        final Runnable warmUpTask = () -> {
+            int entryCount = 0;
+            long bytes = 0;
+            try {
+                for (CacheIndex.Entry entry : getHottestEntries(maxEntries, maxBytes)) {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    if (warmUp(entry, parser)) {
+                        entryCount++;
+                        bytes += entry.size;
+                    }
+                }
+            } finally {
+                future.complete(new WarmUpResult(entryCount, bytes));
+            }
+        };
+        // Hops through the cache thread, so the entries are picked once the index is loaded
+        executor.execute(() -> {
+            try {
+                readers.execute(warmUpTask, deadline);
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+        }, executor.deadline(Priority.LOW.slackMillis));
+        return future;
+    }
+
+    /**
+     * @return the most recently used entries, most recent first, that fit into both limits
+     */
+    private List<CacheIndex.Entry> getHottestEntries(int maxEntries, long maxBytes) {
+        ArrayList<RankedEntry> ranked = new ArrayList<>(index.size());
+        for (CacheIndex.Entry entry : index.entries()) {
+            ranked.add(new RankedEntry(entry));
+        }
+        Collections.sort(ranked);
+        ArrayList<CacheIndex.Entry> entries = new ArrayList<>(Math.min(maxEntries, ranked.size()));
+        long bytes = 0;
+        for (RankedEntry rankedEntry : ranked) {
+            if (entries.size() >= maxEntries || bytes >= maxBytes) {
+                break;
+            }
+            CacheIndex.Entry entry = rankedEntry.entry;
+            if (bytes + entry.size <= maxBytes) {
+                entries.add(entry);
+                bytes += entry.size;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the entry into the OS page cache, or parses it into the memory cache
+     *
+     * @param parser parses the entry when there is a memory cache, otherwise the entry is only read
+     * @return false if the entry was replaced since it was picked or it could not be read
+     */
+    private boolean warmUp(CacheIndex.Entry entry, Parser<?> parser) {
+        Lock lock = locks.get(entry.key).readLock();
+        lock.lock();
+        try {
+            if (index.get(entry.key) != entry) {
+                return false;
+            }
+            ObjectCache objectCache = this.objectCache;
+            if (parser != null && objectCache != null) {
+                if (objectCache.get(entry.key, parser.getClass(), entry.rowId) != null) {
+                    return true;
+                }
+                File file = getDecodedFile(entry);
+                long start = System.nanoTime();
+                Object result = file != null ? parser.parse(file) : null;
+                stats.recordLatency(StatsRecorder.PARSE_LATENCY, start);
+                if (result != null) {
+                    objectCache.put(entry.key, parser.getClass(), entry.rowId, result);
+                }
+                return result != null;
+            }
+            if (entry.slab != 0) {
+                readFile(slabs.toFile(entry.slab), entry.offset, entry.size, null);
+            } else {
+                readFile(entry.hash != null ? blobs.toFile(entry.hash) : toFile(entry.rowId), 0, entry.size, null);
+            }
+            return true;
+        } catch (Throwable e) {
+            Log.e("VIF", "Error warming up " + entry.key, e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the given range of the file and drops the bytes, what is left is the file in the OS page cache
+     *
+     * @param checksum updated with the bytes as they are read, or null
+     */
+    private void readFile(File file, long offset, long size, Crc32c checksum) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        BufferPool bufferPool = this.bufferPool;
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long position = offset;
+            long end = offset + size;
+            while (position < end) {
+                buffer.clear();
+                if (buffer.remaining() > end - position) {
+                    buffer.limit((int) (end - position));
+                }
+                int count = channel.read(buffer, position);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                position += count;
+                if (checksum != null) {
+                    buffer.flip();
+                    checksum.update(buffer);
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+            close(inputStream);
+        }
+    }
+
+    /**
+     * @return true if this read of the entry should be verified, by the verification mode
+     */
+    private boolean shouldVerify(CacheIndex.Entry entry) {
+        if (entry.checksum == CacheIndex.NO_CHECKSUM) {
+            return false;
+        }
+        Verification verification = this.verification;
+        return verification == Verification.ALWAYS || verification == Verification.SAMPLED
+                && verificationCounter.getAndIncrement() % Verification.SAMPLE_RATE == 0;
+    }
+
+    /**
+     * Same as {@link #getFile(CacheIndex.Entry)}, but encoded entries are first decoded into their own
+     * file, and if the read is verified and the stored bytes do not match their checksum the entry
+     * is quarantined. Should be called while holding the read lock of the key.
+     *
+     * @return the file or null if it could not be extracted, decoded or is corrupted
+     */
+    private File getDecodedFile(CacheIndex.Entry entry) {
+        File file = getFile(entry);
+        if (file != null && shouldVerify(entry) && !hasValidChecksum(file, entry)) {
+            quarantine(entry);
+            return null;
+        }
+        if (file == null || entry.codec == Codec.NONE.getId()) {
+            return file;
+        }
+        File decodedFile = toDecodedFile(entry.rowId);
+        if (decodedFile.exists()) {
+            return decodedFile;
+        }
+        Codec codec = codecs.get(entry.codec);
+        if (codec == null) {
+            Log.e("VIF", "Unknown codec " + entry.codec + " of entry " + entry.key);
+            return null;
+        }
+        File tempFile = newTempFile();
+        try {
+            decodeFile(file, codec, tempFile);
+            FileLayout.ensureParent(decodedFile);
+            if (!tempFile.renameTo(decodedFile)) {
+                throw new IOException("Error renaming " + tempFile + " to " + decodedFile);
+            }
+        } catch (IOException e) {
+            Log.e("VIF", "Error decoding " + entry.key, e);
+            deleteFile(tempFile);
+            return null;
+        }
+        return decodedFile;
+    }
+
+    private void decodeFile(File file, Codec codec, File target) throws IOException {
+        ReadableByteChannel inputChannel = null;
+        FileOutputStream outputStream = null;
+        BufferPool bufferPool = this.bufferPool;
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            inputChannel = Channels.newChannel(codec.decode(new FileInputStream(file)));
+            outputStream = new FileOutputStream(target);
+            FileChannel outputChannel = outputStream.getChannel();
+            buffer.clear();
+            while (inputChannel.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    outputChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            bufferPool.release(buffer);
+            close(inputChannel);
+            close(outputStream);
+        }
+    }
+
+    private boolean hasValidChecksum(File file, CacheIndex.Entry entry) {
+        if (file.length() != entry.size) {
+            return false;
+        }
+        Crc32c checksum = new Crc32c();
+        try {
+            readFile(file, 0, entry.size, checksum);
+        } catch (IOException e) {
+            Log.e("VIF", "Error verifying entry " + entry.key, e);
+            return false;
+        }
+        return checksum.getValue() == entry.checksum;
+    }
+
+    /**
+     * Removes an entry that failed verification, together with the other entries of its blob,
+     * unless they were replaced in the meantime
+     */
+    private void quarantine(final CacheIndex.Entry entry) {
+        Log.e("VIF", "Checksum mismatch, removing entry " + entry.key);
+        stats.increment(StatsRecorder.CORRUPTIONS);
+        ArrayList<String> keys = new ArrayList<>();
+        keys.add(entry.key);
+        if (entry.hash != null) {
+            for (CacheIndex.Entry other : index.entries()) {
+                if (other != entry && entry.hash.equals(other.hash)) {
+                    keys.add(other.key);
+                }
+            }
+        }
+        final List<String> corruptedKeys = keys;
+        try {
+            executeWrite(corruptedKeys, Priority.NORMAL, () -> {
+                ArrayList<Integer> rowIds = new ArrayList<>(corruptedKeys.size());
+                for (String key : corruptedKeys) {
+                    CacheIndex.Entry indexed = index.get(key);
+                    if (indexed == entry || indexed != null && entry.hash != null && entry.hash.equals(indexed.hash)) {
+                        rowIds.add((int) indexed.rowId);
+                    }
+                }
+                removeKeys(rowIds);
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the entry is verified again when it is read in the next session
+        }
+    }
+
+    private void executeWrite(String key, Priority priority, Runnable task) {
+        executeWrite(Collections.singletonList(key), priority, null, task);
+    }
+
+    private void executeWrite(Collection<String> keys, Priority priority, Runnable task) {
+        executeWrite(keys, priority, null, task);
+    }
+
+    /**
+     * Runs the task on the cache thread by the deadline of its priority, but never ahead of
+     * the earlier writes of the same keys. Reads of the given keys submitted from now on
+     * will wait for it to complete, streams of the keys will tail the given put instead
+     * of the puts that were in flight before.
+     *
+     * @param inFlight the put this task runs or null
+     */
+    private void executeWrite(Collection<String> keys, Priority priority, InFlightWrite inFlight,
+                              final Runnable task) {
+        ensureStarted();
+        final ArrayList<String> writtenKeys = new ArrayList<>(keys);
+        synchronized (locks) {
+            for (String key : writtenKeys) {
+                locks.beginWrite(key);
+                if (inFlight != null) {
+                    inFlightWrites.put(key, inFlight);
+                } else {
+                    inFlightWrites.remove(key);
+                }
+            }
+            final long deadline = locks.orderWrite(writtenKeys, executor.deadline(priority.slackMillis));
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e("VIF", "Error writing " + writtenKeys, e);
+                } finally {
+                    for (String key : writtenKeys) {
+                        locks.endWrite(key, deadline);
+                    }
+                }
+            }, deadline);
+        }
+    }
+
+    private void executeRead(String key, Priority priority, Runnable task) {
+        executeRead(Collections.singletonList(key), priority, task);
+    }
+
+    /**
+     * Runs the task on the reader pool, by the deadline of its priority, once the index is loaded.
+     * If any of the keys has pending writes, the task is first queued behind them on the cache thread,
+     * so a get always sees the puts and deletes that were called before it.
+     */
+    private void executeRead(Collection<String> keys, Priority priority, Runnable task) {
+        ensureStarted();
+        final long start = System.nanoTime();
+        final long deadline = readers.deadline(priority.slackMillis);
+        final Runnable readTask = () -> {
+            awaitReady();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e("VIF", "Error reading " + keys, e);
+            }
+            stats.recordLatency(StatsRecorder.GET_LATENCY, start);
+        };
+        for (String key : keys) {
+            if (locks.hasPendingWrites(key)) {
+                synchronized (locks) {
+                    long writeDeadline = executor.deadline(priority.slackMillis);
+                    for (String writtenKey : keys) {
+                        writeDeadline = Math.max(writeDeadline, locks.getWriteDeadline(writtenKey));
+                    }
+                    executor.execute(() -> {
+                        try {
+                            readers.execute(readTask, deadline);
+                        } catch (RejectedExecutionException e) {
+                            // The readers are shut down, complete the read here instead of dropping it
+                            readTask.run();
+                        }
+                    }, writeDeadline);
+                }
+                return;
+            }
+        }
+        readers.execute(readTask, deadline);
+    }
+
+    /**
+     * Runs eviction, cleanups and other background work on the cache thread, behind the reads and
+     * the writes unless they keep it waiting for longer than {@link #MAINTENANCE_SLACK_MILLIS}
+     */
+    private void executeMaintenance(Runnable task) {
+        executor.execute(task, executor.deadline(MAINTENANCE_SLACK_MILLIS));
+    }
+
+    private void ensureStarted() {
+        if (started.compareAndSet(false, true)) {
+            executor.execute(this::start, PriorityExecutor.FIRST);
+        }
+    }
+
+    /**
+     * Restores the cache state, runs on the cache thread before any other operation.
+     * Reads are released as soon as the files are in place, they resolve keys through the journal
+     * until the index is loaded. Writes are queued behind the index load and cleaning up
+     * the leftovers of the previous session is delayed.
+     */
+    private void start() {
+        migrateLayout();
+        slabs = new SlabStore(new File(getCacheDir(), "slabs"));
+        blobs = new BlobStore(new File(getCacheDir(), "blobs"));
+        sizeSnapshot = Math.max(journal.getSizeSnapshot(), 0);
+        if (evictionPolicy == null) {
+            evictionPolicy = new LruPolicy(journal);
+        }
+        evictionPolicy.open(getPolicyFile(), lowWatermark);
+        clearDecodedDir();
+        ready.countDown();
+        index.load(journal.getFinalizedEntries());
+        slabs.load(index.entries());
+        restoreEvictionPolicy();
+        scheduleEviction();
+        scheduleSlabCompaction();
+        try {
+            timer.schedule(() -> executeMaintenance(this::removeCorruptedFiles), CLEANUP_DELAY_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down while loading, the leftovers are cleaned up in the next session
+        }
+    }
+
+    /**
+     * Removes the entries that were never finalized, the temp files of previous sessions and
+     * the files and blobs that no entry points to
+     */
+    private void removeCorruptedFiles() {
+        if (journal == null) {
+            return;
+        }
+        clearTempDir();
+        removeKeys(journal.getCorruptedFiles());
+        layout.removeUnreferenced(getCacheDir(), index);
+        blobs.removeUnreferenced(index);
+    }
+
+    /**
+     * @return the total size, taken from the snapshot of the previous session until the index is loaded
+     */
+    long getTotalSize() {
+        return index.isLoaded() ? index.getTotalSize() : sizeSnapshot;
+    }
+
+    private void migrateLayout() {
+        File root = getCacheDir();
+        int oldLevels = FileLayout.readLevels(root);
+        if (oldLevels == layout.getLevels()) {
+            return;
+        }
+        List<CacheIndex.Entry> entries = journal.getFinalizedEntries();
+        List<Integer> corruptedKeys = journal.getCorruptedFiles();
+        ArrayList<Long> rowIds = new ArrayList<>(entries.size() + corruptedKeys.size());
+        for (CacheIndex.Entry entry : entries) {
+            rowIds.add(entry.rowId);
+        }
+        for (int key : corruptedKeys) {
+            rowIds.add((long) key);
+        }
+        layout.migrate(root, new FileLayout(Math.max(oldLevels, 0)), rowIds);
+        layout.writeLevels(root);
+    }
+
+    private void awaitReady() {
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the buffered last_used updates to the journal in a single transaction
+     */
+    private void flushRecency() {
+        if (journal != null) {
+            Map<Long, Long> touches = recencyBuffer.drain();
+            if (!touches.isEmpty()) {
+                long start = System.nanoTime();
+                journal.touch(touches);
+                stats.recordLatency(StatsRecorder.JOURNAL_LATENCY, start);
+            }
+            saveSizeSnapshot();
+        }
+    }
+
+    private void saveSizeSnapshot() {
+        if (index.isLoaded()) {
+            journal.saveSizeSnapshot(index.getTotalSize());
+        }
+    }
+
+    /**
+     * Queues a single eviction pass on the cache thread once the size crossed maxSize,
+     * the shards of a size budget are all trimmed together
+     */
+    private void scheduleEviction() {
+        SizeBudget sizeBudget = this.sizeBudget;
+        if (sizeBudget != null) {
+            sizeBudget.scheduleEviction();
+        } else {
+            scheduleOwnEviction();
+        }
+    }
+
+    /**
+     * Queues an eviction pass of this cache alone, a cache that was not started yet has nothing to evict
+     */
+    void scheduleOwnEviction() {
+        if (started.get() && isOverMaxSize() && evictionScheduled.compareAndSet(false, true)) {
+            try {
+                executeMaintenance(() -> {
+                    evictionScheduled.set(false);
+                    freeSpace();
+                });
+            } catch (RejectedExecutionException e) {
+                evictionScheduled.set(false);
+            }
+        }
+    }
+
+    private boolean isOverMaxSize() {
+        SizeBudget sizeBudget = this.sizeBudget;
+        return sizeBudget != null ? sizeBudget.isExceeded() : getTotalSize() > maxSize;
+    }
+
+    /**
+     * Evicts the entries picked by the eviction policy, batch by batch, until the size drops to the low watermark,
+     * or to the share of this cache of the low watermark of its size budget. The shares change as the other
+     * shards evict, so the shards are queued again while the budget is still exceeded.
+     */
+    private void freeSpace() {
+        if (!isOverMaxSize()) {
+            return;
+        }
+        flushRecency();
+        SizeBudget sizeBudget = this.sizeBudget;
+        long target = sizeBudget != null ? sizeBudget.getShardTarget(index.getTotalSize()) : lowWatermark;
+        long sizeBefore = index.getTotalSize();
+        int skipped = 0;
+        while (index.getTotalSize() > target) {
+            List<Long> keys = evictionPolicy.getVictims(EVICTION_BATCH_SIZE, skipped);
+            if (keys.isEmpty()) {
+                break;
+            }
+            long toFree = index.getTotalSize() - target;
+            ArrayList<Integer> victims = new ArrayList<>(keys.size());
+            for (long key : keys) {
+                if (toFree <= 0) {
+                    break;
+                }
+                CacheIndex.Entry entry = index.get(key);
+                victims.add((int) key);
+                toFree -= entry != null ? entry.size : 0;
+            }
+            ArrayList<Integer> kept = new ArrayList<>();
+            List<CacheIndex.Entry> evicted = removeKeys(victims, kept);
+            for (CacheIndex.Entry entry : evicted) {
+                stats.increment(StatsRecorder.EVICTIONS);
+                stats.add(StatsRecorder.BYTES_EVICTED, entry.size);
+            }
+            // Kept entries stay at the head of the policy order, the next batch starts after them
+            skipped += kept.size();
+        }
+        saveSizeSnapshot();
+        evictionPolicy.save(getPolicyFile());
+        if (sizeBudget != null && index.getTotalSize() < sizeBefore) {
+            sizeBudget.scheduleEviction();
+        }
+    }
+
+    /**
+     * Feeds the loaded entries to the eviction policy, least recently used first
+     */
+    private void restoreEvictionPolicy() {
+        ArrayList<CacheIndex.Entry> entries = new ArrayList<>(index.entries());
+        Collections.sort(entries, (first, second) ->
+                first.lastUsed < second.lastUsed ? -1 : first.lastUsed == second.lastUsed ? 0 : 1);
+        for (CacheIndex.Entry entry : entries) {
+            evictionPolicy.onRestore(entry.rowId, entry.key, entry.size);
+        }
+    }
+
+    private File getPolicyFile() {
+        return new File(getCacheDir(), "policy");
+    }
+
+    private void logErrorDeletingFile(File file) {
+        Log.e("VIF", "Error removing file " + file + ". Will retry on next reboot");
+    }
+
+    private boolean deleteFile(File file) {
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * Saves the stream into a temp file, hashing it if deduplication is enabled
+     *
+     * @param inFlight the put streams of the key tail, null if it cannot be tailed
+     * @return the saved put or null if saving failed
+     */
+    private PendingPut savePut(String key, ReadableByteChannel source, Codec codec, InFlightWrite inFlight) {
+        File tempFile = newTempFile();
+        MessageDigest digest = deduplication ? BlobStore.newDigest(codec) : null;
+        Crc32c checksum = verification != Verification.NEVER ? new Crc32c() : null;
+        long rawSize = saveFile(key, tempFile, source, codec, inFlight, digest, checksum);
+        if (rawSize >= 0) {
+            return new PendingPut(key, tempFile, rawSize, codec.getId(),
+                    digest != null ? BlobStore.toHash(digest) : null,
+                    checksum != null ? checksum.getValue() : CacheIndex.NO_CHECKSUM);
+        }
+        deleteFile(tempFile);
+        return null;
+    }
+
+    /**
+     * Moves the saved files in place and records them in the journal with a single commit.
+     * Files are renamed before the commit, a crash in between only leaves orphan files and blobs
+     * that are removed on the next start. Readers keep seeing the previous entries until the commit is done.
+     *
+     * @return the committed entries
+     */
+    private List<CacheIndex.Entry> commitPuts(List<PendingPut> pendingPuts) {
+        ArrayList<CacheIndex.Entry> committed = new ArrayList<>(pendingPuts.size());
+        if (pendingPuts.isEmpty()) {
+            return committed;
+        }
+        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
+        journal.beginTransaction();
+        try {
+            long k = journal.getMaxRowId();
+            for (PendingPut pendingPut : pendingPuts) {
+                File file = toFile(++k);
+                long size = pendingPut.tempFile.length();
+                String hash = size > slabThreshold ? pendingPut.hash : null;
+                if (hash != null) {
+                    size = storeBlob(hash, pendingPut.tempFile);
+                    if (size < 0) {
+                        continue;
+                    }
+                }
+                CacheIndex.Entry entry = new CacheIndex.Entry(pendingPut.key, k, size, now, pendingPut.rawSize,
+                        pendingPut.codec, hash, pendingPut.checksum);
+                if (hash == null && !pack(entry, pendingPut.tempFile, file)) {
+                    FileLayout.ensureParent(file);
+                    if (!pendingPut.tempFile.renameTo(file)) {
+                        Log.e("VIF", "Error renaming " + pendingPut.tempFile + " to " + file);
+                        deleteFile(pendingPut.tempFile);
+                        continue;
+                    }
+                }
+                journal.insertKey(entry);
+                committed.add(entry);
+            }
+            journal.setTransactionSuccessful();
+        } finally {
+            journal.endTransaction();
+        }
+        stats.recordLatency(StatsRecorder.JOURNAL_LATENCY, start);
+        for (CacheIndex.Entry entry : committed) {
+            stats.increment(StatsRecorder.PUTS);
+            stats.add(StatsRecorder.BYTES_WRITTEN, entry.size);
+        }
+        for (CacheIndex.Entry entry : committed) {
+            Lock lock = locks.get(entry.key).writeLock();
+            lock.lock();
+            try {
+                CacheIndex.Entry oldEntry = index.get(entry.key);
+                index.put(entry);
+                if (entry.slab != 0) {
+                    slabs.add(entry.slab, entry.size);
+                }
+                invalidateObjects(entry.key);
+                if (oldEntry != null) {
+                    recencyBuffer.forget(oldEntry.rowId);
+                    evictionPolicy.onRemove(oldEntry.rowId);
+                    deleteEntryFile(oldEntry.rowId, oldEntry);
+                }
+                evictionPolicy.onAdd(entry.rowId, entry.key, entry.size);
+            } finally {
+                lock.unlock();
+            }
+        }
+        scheduleSlabCompaction();
+        return committed;
+    }
+
+    /**
+     * Moves the temp file in place as the blob of the hash, or drops it if the blob is already stored
+     *
+     * @return the stored size of the blob or -1 if it could not be moved in place
+     */
+    private long storeBlob(String hash, File tempFile) {
+        File blob = blobs.toFile(hash);
+        if (index.getReferences(hash) > 0 && blob.exists()) {
+            deleteFile(tempFile);
+            return blob.length();
+        }
+        FileLayout.ensureParent(blob);
+        if (!tempFile.renameTo(blob)) {
+            Log.e("VIF", "Error renaming " + tempFile + " to " + blob);
+            deleteFile(tempFile);
+            return -1;
+        }
+        return blob.length();
+    }
+
+    /**
+     * Appends the temp file to a slab if it is small enough
+     *
+     * @param file the file the entry would have if it was not packed, it is removed in case it was left
+     *             over from a crash, so it will not be mistaken for the extracted entry
+     * @return true if the entry was packed
+     */
+    private boolean pack(CacheIndex.Entry entry, File tempFile, File file) {
+        if (entry.size > slabThreshold) {
+            return false;
+        }
+        try {
+            SlabStore.Location location = slabs.append(tempFile, 0, entry.size);
+            entry.slab = location.slab;
+            entry.offset = location.offset;
+        } catch (IOException e) {
+            Log.e("VIF", "Error packing " + entry.key, e);
+            return false;
+        }
+        deleteFile(tempFile);
+        if (!deleteFile(file)) {
+            logErrorDeletingFile(file);
+        }
+        return true;
+    }
+
+    /**
+     * @return the file of the entry, a packed entry is first extracted into its own file,
+     * or null if the extraction failed
+     */
+    private File getFile(CacheIndex.Entry entry) {
+        if (entry.hash != null) {
+            return blobs.toFile(entry.hash);
+        }
+        File file = toFile(entry.rowId);
+        long slab = entry.slab;
+        if (slab == 0 || file.exists()) {
+            return file;
+        }
+        File tempFile = newTempFile();
+        try {
+            slabs.extract(slab, entry.offset, entry.size, tempFile);
+            FileLayout.ensureParent(file);
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Error renaming " + tempFile + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.e("VIF", "Error extracting " + entry.key, e);
+            deleteFile(tempFile);
+            return null;
+        }
+        final long rowId = entry.rowId;
+        try {
+            executeMaintenance(() -> unpack(rowId));
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the entry stays packed and its extracted file is reused next time
+        }
+        return file;
+    }
+
+    /**
+     * Points the entry to its extracted file and releases its slab bytes
+     */
+    private void unpack(long rowId) {
+        CacheIndex.Entry entry = index.get(rowId);
+        if (entry == null || entry.slab == 0 || !toFile(rowId).exists()) {
+            return;
+        }
+        journal.moveKey(rowId, 0, 0);
+        long slab = entry.slab;
+        Lock lock = locks.get(entry.key).writeLock();
+        lock.lock();
+        try {
+            entry.slab = 0;
+            entry.offset = 0;
+        } finally {
+            lock.unlock();
+        }
+        slabs.release(slab, entry.size);
+        scheduleSlabCompaction();
+    }
+
+    private void scheduleSlabCompaction() {
+        if (slabThreshold > 0 && slabCompactionScheduled.compareAndSet(false, true)) {
+            try {
+                executeMaintenance(() -> {
+                    slabCompactionScheduled.set(false);
+                    compactSlabs();
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down, dead space is compacted on the next start
+            }
+        }
+    }
+
+    /**
+     * Moves the live entries of sparse slabs into the active slab, the sparse slabs are removed
+     * once all their entries are moved
+     */
+    private void compactSlabs() {
+        for (long slab : slabs.getSparseSlabs()) {
+            ArrayList<CacheIndex.Entry> entries = new ArrayList<>();
+            for (CacheIndex.Entry entry : index.entries()) {
+                if (entry.slab == slab) {
+                    entries.add(entry);
+                }
+            }
+            ArrayList<SlabStore.Location> locations = new ArrayList<>(entries.size());
+            journal.beginTransaction();
+            try {
+                for (CacheIndex.Entry entry : entries) {
+                    SlabStore.Location location = slabs.append(slabs.toFile(slab), entry.offset, entry.size);
+                    journal.moveKey(entry.rowId, location.slab, location.offset);
+                    locations.add(location);
+                }
+                journal.setTransactionSuccessful();
+            } catch (IOException e) {
+                Log.e("VIF", "Error compacting slab " + slab, e);
+                continue;
+            } finally {
+                journal.endTransaction();
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                CacheIndex.Entry entry = entries.get(i);
+                SlabStore.Location location = locations.get(i);
+                Lock lock = locks.get(entry.key).writeLock();
+                lock.lock();
+                try {
+                    entry.slab = location.slab;
+                    entry.offset = location.offset;
+                } finally {
+                    lock.unlock();
+                }
+                slabs.add(location.slab, entry.size);
+                slabs.release(slab, entry.size);
+            }
+        }
+    }
+
+    /**
+     * Deletes the file of the entry, or releases its slab bytes if it is packed. The blob of
+     * a deduplicated entry is only deleted once no other indexed entry points to it.
+     *
+     * @param entry the entry of this row or null if it is not indexed
+     * @return false if the file could not be deleted
+     */
+    private boolean deleteEntryFile(long rowId, CacheIndex.Entry entry) {
+        if (entry != null && entry.codec != Codec.NONE.getId()) {
+            File decodedFile = toDecodedFile(rowId);
+            if (!deleteFile(decodedFile)) {
+                logErrorDeletingFile(decodedFile);
+            }
+        }
+        File file = toFile(rowId);
+        if (entry != null && entry.hash != null) {
+            int otherReferences = index.getReferences(entry.hash) - (index.get(rowId) == entry ? 1 : 0);
+            if (otherReferences > 0) {
+                return true;
+            }
+            file = blobs.toFile(entry.hash);
+        }
+        if (!deleteFile(file)) {
+            logErrorDeletingFile(file);
+            return false;
+        }
+        if (entry != null && entry.slab != 0) {
+            slabs.release(entry.slab, entry.size);
+        }
+        return true;
+    }
+
+    private void invalidateObjects(String key) {
+        ObjectCache objectCache = this.objectCache;
+        if (objectCache != null) {
+            objectCache.invalidate(key);
+        }
+    }
+
+    private File getCacheDir() {
+        if (cacheDir == null) {
+            cacheDir = context.getExternalCacheDir();
+        }
+        return cacheDir;
+    }
+
+    private File toFile(long k) {
+        return layout.toFile(getCacheDir(), k);
+    }
+
+    /**
+     * @return the decoded copy of an encoded entry, see {@link #getDecodedFile(CacheIndex.Entry)}.
+     * It is named by the rowId of the entry, that is never given to another entry.
+     */
+    private File toDecodedFile(long rowId) {
+        return new File(new File(getCacheDir(), DECODED_DIR), rowId + ".vif");
+    }
+
+    /**
+     * Decoded copies are only kept for the session, so they never outgrow the entries they belong to
+     */
+    private void clearDecodedDir() {
+        File[] files = new File(getCacheDir(), DECODED_DIR).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!deleteFile(file)) {
+                    logErrorDeletingFile(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts are written into the tmp dir first and moved in place once complete
+     */
+    private File newTempFile() {
+        File tempDir = new File(getCacheDir(), "tmp");
+        if (!tempDir.exists() && !tempDir.mkdirs()) {
+            Log.e("VIF", "Error creating " + tempDir);
+        }
+        return new File(tempDir, sessionId + "-" + tempFileCounter.incrementAndGet() + ".tmp");
+    }
+
+    private void clearTempDir() {
+        File[] files = new File(getCacheDir(), "tmp").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(sessionId + "-")) {
+                    continue;
+                }
+                if (!deleteFile(file)) {
+                    logErrorDeletingFile(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the files of the given rows and then the rows themselves in a single statement
+     *
+     * @return the removed index entries
+     */
+    private List<CacheIndex.Entry> removeKeys(List<Integer> keys) {
+        return removeKeys(keys, null);
+    }
+
+    /**
+     * @param kept if not null pinned entries are not removed, they are checked under the write lock of
+     *             their key. The rowIds of the pinned entries and of the entries whose file could not be
+     *             deleted are added to it, entries that are already gone are removed and not added.
+     * @return the removed entries
+     */
+    private List<CacheIndex.Entry> removeKeys(List<Integer> keys, List<Integer> kept) {
+        ArrayList<Integer> cleanedKeys = new ArrayList<>();
+        ArrayList<CacheIndex.Entry> removedEntries = new ArrayList<>();
+        for (int key : keys) {
+            CacheIndex.Entry entry = index.get(key);
+            Lock lock = entry != null ? locks.get(entry.key).writeLock() : null;
+            if (lock != null) {
+                lock.lock();
+            }
+            try {
+                if (kept != null && entry != null && entry.isPinned()) {
+                    kept.add(key);
+                } else if (deleteEntryFile(key, entry)) {
+                    if (entry != null) {
+                        removedEntries.add(index.remove(key));
+                        invalidateObjects(entry.key);
+                    }
+                    recencyBuffer.forget(key);
+                    evictionPolicy.onRemove(key);
+                    cleanedKeys.add(key);
+                } else if (kept != null) {
+                    kept.add(key);
+                }
+            } finally {
+                if (lock != null) {
+                    lock.unlock();
+                }
+            }
+        }
+        if (!cleanedKeys.isEmpty()) {
+            long start = System.nanoTime();
+            journal.deleteKeys(cleanedKeys);
+            stats.recordLatency(StatsRecorder.JOURNAL_LATENCY, start);
+        }
+        scheduleSlabCompaction();
+        return removedEntries;
+    }
+
+    /**
+     * Copies the source into the file, a FileChannel source is transferred by the file system,
+     * anything else is copied through a pooled buffer. The progress is reported to the in flight put
+     * after each chunk.
+     *
+     * @param digest   updated with the raw bytes as they are copied, a FileChannel source that
+     *                 needs hashing is copied through the buffer too, null skips the hashing
+     * @param checksum updated with the stored bytes as they are written, same as the digest
+     *                 it takes the buffer path, null skips the checksum
+     * @return the number of bytes read from the source or -1 if saving failed
+     */
+    private long saveFile(String originalKey, File file, ReadableByteChannel source, Codec codec,
+                          InFlightWrite inFlight, MessageDigest digest, Crc32c checksum) {
+        FileOutputStream fileStream = null;
+        WritableByteChannel target = null;
+        try {
+            fileStream = new FileOutputStream(file, false);
+            FileChannel fileChannel = fileStream.getChannel();
+            if (inFlight != null) {
+                inFlight.start(file);
+            }
+            if (codec == Codec.NONE && digest == null && checksum == null && source instanceof FileChannel) {
+                long rawSize = 0;
+                long count;
+                while ((count = fileChannel.transferFrom(source, rawSize, TRANSFER_CHUNK_SIZE)) > 0) {
+                    rawSize += count;
+                    if (inFlight != null) {
+                        inFlight.setWritten(rawSize);
+                    }
+                }
+                fileStream.close();
+                return rawSize;
+            }
+            if (codec == Codec.NONE) {
+                target = fileChannel;
+            } else {
+                OutputStream storedStream = checksum != null ? new CheckedOutputStream(fileStream, checksum)
+                        : fileStream;
+                target = Channels.newChannel(codec.encode(storedStream));
+            }
+            BufferPool bufferPool = this.bufferPool;
+            ByteBuffer buffer = bufferPool.acquire();
+            try {
+                long rawSize = 0;
+                int count;
+                while ((count = source.read(buffer)) >= 0) {
+                    rawSize += count;
+                    buffer.flip();
+                    if (digest != null) {
+                        buffer.mark();
+                        digest.update(buffer);
+                        buffer.reset();
+                    }
+                    if (checksum != null && codec == Codec.NONE) {
+                        buffer.mark();
+                        checksum.update(buffer);
+                        buffer.reset();
+                    }
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    buffer.clear();
+                    if (inFlight != null) {
+                        inFlight.setWritten(fileChannel.position());
+                    }
+                }
+                target.close();
+                if (inFlight != null) {
+                    inFlight.setWritten(file.length());
+                }
+                return rawSize;
+            } finally {
+                bufferPool.release(buffer);
+            }
+        } catch (IOException e) {
+            Log.e("diskCache", "Error saving file " + originalKey);
+            return -1;
+        } catch (RuntimeException e) {
+            // A failing source only fails its own entry
+            Log.e("diskCache", "Error saving file " + originalKey, e);
+            return -1;
+        } finally {
+            close(target);
+            close(fileStream);
+            close(source);
+        }
+    }
+
+    /**
+     * @return the channel of a file stream, so it can be transferred by the file system
+     */
+    private static ReadableByteChannel toChannel(InputStream inputStream) {
+        if (inputStream instanceof FileInputStream) {
+            return ((FileInputStream) inputStream).getChannel();
+        }
+        return Channels.newChannel(inputStream);
+    }
+
+    private void close(Closeable outputStream) {
+        try {
+            if (outputStream != null) {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Callback interface for retrieving the file
+     */
+    public interface FileCallback {
+        void onResult(File file);
+    }
+
+    /**
+     * Callback interface for retrieving a pinned cache entry
+     */
+    public interface EntryCallback {
+        void onResult(CacheEntry entry);
+    }
+
+    /**
+     * Callback interface for retrieving the entry stream
+     */
+    public interface StreamCallback {
+        void onResult(InputStream inputStream);
+    }
+
+    /**
+     * Callback interface for bulk operations, receives the result of each key
+     */
+    public interface BulkCallback<T> {
+        void onResult(Map<String, T> results);
+    }
+
+    /**
+     * Parses the cache file into the T result, called on one of the reader threads
+     */
+    public interface Parser<T> {
         T parse(File file) throws Exception;
+    }
+
+    /**
+     * Callback interface for parsing and retrieving the T result
+     */
+    public interface ParserCallback<T> extends Parser<T> {
 
         void onError(Throwable e);
 
         void onResult(T result);
     }
+
+    /**
+     * Callback interface for periodic statistics reports
+     */
+    public interface StatsListener {
+        void onStats(CacheStats stats);
+    }
+
+    /**
+     * Weight of the results kept by the memory cache
+     */
+    public interface Weigher {
+        long weigh(String key, Object value);
+    }
+
+    /**
+     * Source of the entries that are missing from the cache
+     */
+    public interface Loader {
+
+        /**
+         * @return the entry content, it will be closed once the reading is complete,
+         * or null if there is no such entry
+         */
+        InputStream load(String key) throws Exception;
+    }
+
+    private static class ObjectRequest {
+        final Parser<Object> parser;
+        final CacheFuture<Object> future;
+        final Loader loader;
+        final Priority priority;
+
+        ObjectRequest(Parser<Object> parser, CacheFuture<Object> future, Loader loader, Priority priority) {
+            this.parser = parser;
+            this.future = future;
+            this.loader = loader;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Entry with the last used time it had when it was ranked, so concurrent reads do not reorder it while sorting
+     */
+    private static class RankedEntry implements Comparable<RankedEntry> {
+        final CacheIndex.Entry entry;
+        final long lastUsed;
+
+        RankedEntry(CacheIndex.Entry entry) {
+            this.entry = entry;
+            lastUsed = entry.lastUsed;
+        }
+
+        @Override
+        public int compareTo(RankedEntry other) {
+            return lastUsed > other.lastUsed ? -1 : lastUsed < other.lastUsed ? 1 : 0;
+        }
+    }
+
+    private static class PendingPut {
+        final String key;
+        final File tempFile;
+        final long rawSize;
+        final int codec;
+        final String hash;
+        final long checksum;
+
+        PendingPut(String key, File tempFile, long rawSize, int codec, String hash, long checksum) {
+            this.key = key;
+            this.tempFile = tempFile;
+            this.rawSize = rawSize;
+            this.codec = codec;
+            this.hash = hash;
+            this.checksum = checksum;
+        }
+    }
 }
@@ -0,0 +1,23 @@
+package com.gazman.disk_cache;
+
+/**
+ * When reads check the stored bytes of an entry against the CRC32C checksum that was computed while
+ * the entry was written. Entries that fail the check are quarantined: they are removed from the cache
+ * and the read misses, so torn or bit rotted files never reach the caller.
+ */
+public enum Verification {
+    /**
+     * No checksums are computed or checked, the default
+     */
+    NEVER,
+    /**
+     * Checksums are computed on every put, one in 16 reads is checked
+     */
+    SAMPLED,
+    /**
+     * Checksums are computed on every put and checked on every read
+     */
+    ALWAYS;
+
+    static final int SAMPLE_RATE = 16;
+}
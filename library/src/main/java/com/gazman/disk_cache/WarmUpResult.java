@@ -0,0 +1,34 @@
+package com.gazman.disk_cache;
+
+/**
+ * What a {@link VIF#warmUp(int, long)} call preloaded
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class WarmUpResult {
+    private final int entryCount;
+    private final long bytes;
+
+    WarmUpResult(int entryCount, long bytes) {
+        this.entryCount = entryCount;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return number of entries that were warmed
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return stored size of the warmed entries in bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "WarmUpResult{entries=" + entryCount + ", bytes=" + bytes + "}";
+    }
+}
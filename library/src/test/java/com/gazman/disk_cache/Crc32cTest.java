@@ -0,0 +1,57 @@
+package com.gazman.disk_cache;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the table driven CRC32C against the test vectors of RFC 3720
+ */
+public class Crc32cTest {
+
+    @Test
+    public void testVectors() {
+        assertEquals(0xE3069283L, checksum("123456789".getBytes()));
+        assertEquals(0x8A9136AAL, checksum(new byte[32]));
+        byte[] ones = new byte[32];
+        Arrays.fill(ones, (byte) 0xff);
+        assertEquals(0x62A8AB43L, checksum(ones));
+        byte[] ascending = new byte[32];
+        for (int i = 0; i < ascending.length; i++) {
+            ascending[i] = (byte) i;
+        }
+        assertEquals(0x46DD794EL, checksum(ascending));
+    }
+
+    @Test
+    public void testChunkedUpdates() {
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        long expected = checksum(data);
+        for (int split = 0; split <= data.length; split += 7) {
+            Crc32c crc = new Crc32c();
+            crc.update(data, 0, split);
+            ByteBuffer rest = ByteBuffer.allocateDirect(data.length - split);
+            rest.put(data, split, data.length - split);
+            rest.flip();
+            crc.update(rest);
+            assertEquals(0, rest.remaining());
+            assertEquals(expected, crc.getValue());
+        }
+        Crc32c crc = new Crc32c();
+        for (byte b : data) {
+            crc.update(b);
+        }
+        assertEquals(expected, crc.getValue());
+    }
+
+    private static long checksum(byte[] data) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,342 @@
+package com.gazman.disk_cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plain JVM tests of the append only journal
+ */
+public class LogJournalTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "log_journal_" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    @Test
+    public void testReplay() {
+        LogJournal journal = new LogJournal(dir);
+        put(journal, 1, "key1", 10, 100);
+        put(journal, 2, "key2", 20, 200);
+        put(journal, 3, "key1", 30, 300);
+        journal.touch(Collections.singletonMap(2L, 400L));
+        journal.close();
+
+        journal = new LogJournal(dir);
+        List<CacheIndex.Entry> entries = journal.getFinalizedEntries();
+        assertEquals(2, entries.size());
+        assertEquals(50, journal.getTotalSize());
+        assertEquals(3, journal.getMaxRowId());
+        assertEquals(Arrays.asList(3, 2), journal.getOldestKeys(10, 0));
+        journal.close();
+    }
+
+    @Test
+    public void testEncodedEntries() {
+        LogJournal journal = new LogJournal(dir);
+        journal.insertKey(new CacheIndex.Entry("key1", 1, 10, 100, 40, Codec.DEFLATE.getId()));
+        put(journal, 2, "key2", 20, 200);
+        journal.close();
+
+        journal = new LogJournal(dir);
+        CacheIndex.Entry entry = journal.getEntry("key1");
+        assertEquals(10, entry.size);
+        assertEquals(40, entry.rawSize);
+        assertEquals(Codec.DEFLATE.getId(), entry.codec);
+        assertEquals(20, journal.getEntry("key2").rawSize);
+        assertEquals(30, journal.getTotalSize());
+        journal.close();
+    }
+
+    @Test
+    public void testPackedEntries() {
+        LogJournal journal = new LogJournal(dir);
+        CacheIndex.Entry packed = new CacheIndex.Entry("key1", 1, 10, 100);
+        packed.slab = 3;
+        packed.offset = 500;
+        journal.insertKey(packed);
+        journal.insertKey(new CacheIndex.Entry("key2", 2, 20, 200));
+        journal.moveKey(2, 4, 0);
+        journal.close();
+
+        journal = new LogJournal(dir);
+        CacheIndex.Entry entry = journal.getEntry("key1");
+        assertEquals(3, entry.slab);
+        assertEquals(500, entry.offset);
+        assertEquals(4, journal.getEntry("key2").slab);
+        journal.moveKey(1, 0, 0);
+        journal.close();
+
+        journal = new LogJournal(dir);
+        assertEquals(0, journal.getEntry("key1").slab);
+        journal.close();
+    }
+
+    @Test
+    public void testMovedEntriesSurviveCompaction() {
+        LogJournal journal = new LogJournal(dir);
+        for (int i = 1; i <= 3; i++) {
+            CacheIndex.Entry packed = new CacheIndex.Entry("key" + i, i, 10, 100);
+            packed.slab = 1;
+            packed.offset = (i - 1) * 10;
+            journal.insertKey(packed);
+        }
+        journal.beginTransaction();
+        try {
+            journal.moveKey(1, 2, 0);
+            journal.moveKey(3, 2, 10);
+            journal.setTransactionSuccessful();
+        } finally {
+            journal.endTransaction();
+        }
+        journal.moveKey(2, 0, 0);
+        for (int i = 0; i < 2000; i++) {
+            journal.touch(Collections.singletonMap(1L, 1000L + i));
+        }
+        assertTrue(new File(dir, "snapshot").exists());
+        journal.close();
+
+        journal = new LogJournal(dir);
+        assertEquals(2, journal.getEntry("key1").slab);
+        assertEquals(0, journal.getEntry("key1").offset);
+        assertEquals(0, journal.getEntry("key2").slab);
+        assertEquals(2, journal.getEntry("key3").slab);
+        assertEquals(10, journal.getEntry("key3").offset);
+        journal.close();
+    }
+
+    @Test
+    public void testDeduplicatedEntries() {
+        LogJournal journal = new LogJournal(dir);
+        journal.insertKey(new CacheIndex.Entry("key1", 1, 10, 100, 10, Codec.NONE.getId(), "abcd"));
+        journal.insertKey(new CacheIndex.Entry("key2", 2, 10, 200, 10, Codec.NONE.getId(), "abcd"));
+        put(journal, 3, "key3", 20, 300);
+        journal.close();
+
+        journal = new LogJournal(dir);
+        assertEquals("abcd", journal.getEntry("key1").hash);
+        assertEquals("abcd", journal.getEntry("key2").hash);
+        assertEquals(null, journal.getEntry("key3").hash);
+
+        CacheIndex index = new CacheIndex();
+        index.load(journal.getFinalizedEntries());
+        assertEquals(2, index.getReferences("abcd"));
+        assertEquals(30, index.getTotalSize());
+        index.remove("key1");
+        assertEquals(30, index.getTotalSize());
+        index.remove("key2");
+        assertEquals(0, index.getReferences("abcd"));
+        assertEquals(20, index.getTotalSize());
+        journal.close();
+    }
+
+    @Test
+    public void testChecksums() {
+        LogJournal journal = new LogJournal(dir);
+        journal.insertKey(new CacheIndex.Entry("key1", 1, 10, 100, 10, Codec.NONE.getId(), null, 0xE3069283L));
+        journal.insertKey(new CacheIndex.Entry("key2", 2, 10, 200, 10, Codec.NONE.getId(), "abcd", 7));
+        put(journal, 3, "key3", 20, 300);
+        journal.close();
+
+        journal = new LogJournal(dir);
+        assertEquals(0xE3069283L, journal.getEntry("key1").checksum);
+        assertEquals(7, journal.getEntry("key2").checksum);
+        assertEquals("abcd", journal.getEntry("key2").hash);
+        assertEquals(CacheIndex.NO_CHECKSUM, journal.getEntry("key3").checksum);
+        journal.close();
+    }
+
+    @Test
+    public void testRollback() {
+        LogJournal journal = new LogJournal(dir);
+        journal.beginTransaction();
+        try {
+            journal.insertKey(new CacheIndex.Entry("key1", 1, 10, 100));
+        } finally {
+            journal.endTransaction();
+        }
+        assertTrue(journal.getFinalizedEntries().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        LogJournal journal = new LogJournal(dir);
+        put(journal, 1, "key1", 10, 100);
+        journal.close();
+
+        FileOutputStream outputStream = new FileOutputStream(new File(dir, "0.log"), true);
+        outputStream.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        outputStream.close();
+
+        journal = new LogJournal(dir);
+        assertEquals(1, journal.getFinalizedEntries().size());
+        put(journal, 2, "key2", 20, 200);
+        journal.close();
+
+        journal = new LogJournal(dir);
+        assertEquals(2, journal.getFinalizedEntries().size());
+        journal.close();
+    }
+
+    @Test
+    public void testCompaction() {
+        LogJournal journal = new LogJournal(dir);
+        for (int i = 1; i <= 5000; i++) {
+            put(journal, i, "key" + (i % 10), i, i);
+        }
+        journal.close();
+        assertTrue(new File(dir, "snapshot").exists());
+
+        journal = new LogJournal(dir);
+        assertEquals(10, journal.getFinalizedEntries().size());
+        assertEquals(5000, journal.getMaxRowId());
+        journal.deleteKeys(Arrays.asList(5000, 4999));
+        assertEquals(8, journal.getFinalizedEntries().size());
+        journal.close();
+    }
+
+    @Test
+    public void testDeletedRowIdsAreNotReused() {
+        LogJournal journal = new LogJournal(dir);
+        for (int i = 1; i <= 100; i++) {
+            put(journal, i, "key" + i, i, i);
+        }
+        journal.deleteKey(100);
+        // Compacts the log into a snapshot that no longer holds rowId 100
+        for (int i = 0; i < 2000; i++) {
+            journal.touch(Collections.singletonMap(1L, 1000L + i));
+        }
+        assertTrue(new File(dir, "snapshot").exists());
+        journal.close();
+
+        journal = new LogJournal(dir);
+        assertEquals(99, journal.getFinalizedEntries().size());
+        assertEquals(100, journal.getMaxRowId());
+        journal.close();
+    }
+
+    @Test
+    public void testLargeCommitIsSplitIntoFrames() {
+        String longKey = repeat('k', 1024 * 1024);
+        LogJournal journal = new LogJournal(dir);
+        journal.beginTransaction();
+        try {
+            for (int i = 1; i <= 20; i++) {
+                journal.insertKey(new CacheIndex.Entry(longKey + i, i, i, 100));
+            }
+            journal.setTransactionSuccessful();
+        } finally {
+            journal.endTransaction();
+        }
+        put(journal, 21, "key21", 21, 200);
+        journal.close();
+
+        journal = new LogJournal(dir);
+        assertEquals(21, journal.getFinalizedEntries().size());
+        assertEquals(20, journal.getEntry(longKey + 20).size);
+        assertEquals(21, journal.getMaxRowId());
+        journal.close();
+    }
+
+    @Test
+    public void testRecordLargerThanFrameIsRejected() {
+        LogJournal journal = new LogJournal(dir);
+        put(journal, 1, "key1", 10, 100);
+        try {
+            put(journal, 2, repeat('k', 17 * 1024 * 1024), 20, 200);
+            throw new AssertionError("The record was written");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(1, journal.getFinalizedEntries().size());
+        put(journal, 3, "key3", 30, 300);
+        journal.close();
+
+        journal = new LogJournal(dir);
+        assertEquals(2, journal.getFinalizedEntries().size());
+        assertEquals(40, journal.getTotalSize());
+        journal.close();
+    }
+
+    @Test
+    public void testFrameWithUnknownRecordIsDroppedAsWhole() throws IOException {
+        LogJournal journal = new LogJournal(dir);
+        put(journal, 1, "key1", 10, 100);
+        journal.close();
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(payload);
+        // A valid PUT record of key2 followed by a record of an unknown type
+        records.writeByte(1);
+        records.writeLong(2);
+        records.writeLong(20);
+        records.writeLong(200);
+        records.writeLong(200);
+        byte[] key = "key2".getBytes("UTF-8");
+        records.writeInt(key.length);
+        records.write(key);
+        records.writeByte(30);
+        records.writeLong(2);
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        DataOutputStream log = new DataOutputStream(new FileOutputStream(new File(dir, "0.log"), true));
+        log.writeInt(bytes.length);
+        log.writeLong(crc32.getValue());
+        log.write(bytes);
+        log.close();
+
+        journal = new LogJournal(dir);
+        assertEquals(1, journal.getFinalizedEntries().size());
+        assertNull(journal.getEntry("key2"));
+        assertEquals(10, journal.getTotalSize());
+        journal.close();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private void put(LogJournal journal, long rowId, String key, long size, long time) {
+        journal.beginTransaction();
+        try {
+            journal.insertKey(new CacheIndex.Entry(key, rowId, size, time));
+            journal.setTransactionSuccessful();
+        } finally {
+            journal.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.gazman.disk_cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plain JVM tests of the sharded cache and its shared size budget, running on the log journal
+ */
+public class ShardedVIFTest {
+    private static final long MAX_SIZE = 1024 * 1024;
+    private static final int ENTRY_SIZE = 50 * 1024;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private File dir;
+    private ShardedVIF cache;
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "sharded_vif_" + System.nanoTime());
+        cache = new ShardedVIF(dir, 2, MAX_SIZE);
+        cache.setCallbackExecutor(Runnable::run);
+    }
+
+    @After
+    public void tearDown() {
+        cache.shutDownAndWait();
+        deleteDir(dir);
+    }
+
+    @Test
+    public void testTotalSizeStaysWithinBudget() throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            String key = "key" + i;
+            keys.add(key);
+            assertTrue(cache.putAsync(key, new ByteArrayInputStream(payload(i))).get(TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS));
+        }
+        awaitTotalSize(MAX_SIZE);
+        for (VIF shard : cache.getShards()) {
+            assertTrue("A shard was drained", shard.getStats().getTotalSize() > 0);
+        }
+        // The most recent entries fit the low watermark of both shards
+        for (String key : keys.subList(keys.size() - 6, keys.size())) {
+            assertNotNull(key + " was evicted", cache.getAsFileAsync(key).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        assertNull(cache.getAsFileAsync(keys.get(0)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBudgetTrimsOtherShards() throws Exception {
+        VIF busy = cache.getShards().get(0);
+        VIF idle = cache.getShards().get(1);
+        List<String> idleKeys = keysOf(idle, 14);
+        for (String key : idleKeys) {
+            assertTrue(cache.putAsync(key, new ByteArrayInputStream(payload(key.hashCode())))
+                    .get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        long idleSize = idle.getStats().getTotalSize();
+        assertEquals(14 * ENTRY_SIZE, idleSize);
+
+        for (String key : keysOf(busy, 14)) {
+            assertTrue(cache.putAsync(key, new ByteArrayInputStream(payload(key.hashCode())))
+                    .get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        awaitTotalSize(MAX_SIZE);
+        assertTrue("The idle shard was not trimmed", idle.getStats().getTotalSize() < idleSize);
+        assertTrue("The idle shard was drained", idle.getStats().getTotalSize() > 0);
+        assertNull(cache.getAsFileAsync(idleKeys.get(0)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWarmUpSplitsLimits() throws Exception {
+        for (VIF shard : cache.getShards()) {
+            for (String key : keysOf(shard, 5)) {
+                assertTrue(cache.putAsync(key, new ByteArrayInputStream(payload(key.hashCode())))
+                        .get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+        }
+        cache.shutDownAndWait();
+        cache = new ShardedVIF(dir, 2, MAX_SIZE);
+        cache.setCallbackExecutor(Runnable::run);
+
+        WarmUpResult result = cache.warmUp(4, Long.MAX_VALUE).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(4, result.getEntryCount());
+        assertEquals(4 * ENTRY_SIZE, result.getBytes());
+        // Each shard gets half of the bytes, which fits a single entry
+        result = cache.warmUp(100, 3 * ENTRY_SIZE).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(2, result.getEntryCount());
+        assertEquals(2 * ENTRY_SIZE, result.getBytes());
+    }
+
+    /**
+     * @return count keys that are routed to the given shard
+     */
+    private List<String> keysOf(VIF shard, int count) {
+        List<String> keys = new ArrayList<>(count);
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "key" + i;
+            if (cache.getShard(key) == shard) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private void awaitTotalSize(long maxSize) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (cache.getTotalSize() > maxSize) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Total size is still " + cache.getTotalSize());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] payload(int seed) {
+        byte[] payload = new byte[ENTRY_SIZE];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+
+    private static void deleteDir(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteDir(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
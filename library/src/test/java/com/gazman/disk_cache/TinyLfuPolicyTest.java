@@ -0,0 +1,103 @@
+package com.gazman.disk_cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plain JVM tests of the frequency aware eviction policy
+ */
+public class TinyLfuPolicyTest {
+    private static final int CAPACITY = 100;
+
+    private File stateFile;
+
+    @Before
+    public void setUp() {
+        stateFile = new File(System.getProperty("java.io.tmpdir"), "tiny_lfu_" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        stateFile.delete();
+    }
+
+    @Test
+    public void testHotEntriesSurviveScan() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(1000);
+        policy.open(stateFile, CAPACITY);
+        for (int i = 0; i < 50; i++) {
+            policy.onAdd(i, "hot" + i, 1);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 50; i++) {
+                policy.onAccess(i, "hot" + i);
+            }
+        }
+        int size = 50;
+        for (int i = 0; i < 500; i++) {
+            policy.onAdd(1000 + i, "scan" + i, 1);
+            size++;
+            if (size > CAPACITY) {
+                for (long rowId : policy.getVictims(size - CAPACITY, 0)) {
+                    policy.onRemove(rowId);
+                    size--;
+                }
+            }
+        }
+        List<Long> remaining = policy.getVictims(Integer.MAX_VALUE, 0);
+        assertEquals(CAPACITY, remaining.size());
+        for (long i = 0; i < 50; i++) {
+            assertTrue("Hot entry " + i + " was evicted", remaining.contains(i));
+        }
+    }
+
+    @Test
+    public void testVictimsSkip() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(1000);
+        policy.open(stateFile, CAPACITY);
+        for (int i = 0; i < 10; i++) {
+            policy.onAdd(i, "key" + i, 1);
+        }
+        List<Long> all = policy.getVictims(10, 0);
+        assertEquals(10, all.size());
+        assertEquals(all.subList(3, 5), policy.getVictims(2, 3));
+        policy.onRemove(all.get(0));
+        assertFalse(policy.getVictims(10, 0).contains(all.get(0)));
+    }
+
+    @Test
+    public void testStateRestored() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(1000);
+        policy.open(stateFile, CAPACITY);
+        for (int i = 0; i < 20; i++) {
+            policy.onAdd(i, "key" + i, 1);
+        }
+        for (int i = 0; i < 20; i += 2) {
+            policy.onAccess(i, "key" + i);
+        }
+        List<Long> victims = policy.getVictims(20, 0);
+        policy.save(stateFile);
+
+        TinyLfuPolicy restored = new TinyLfuPolicy(1000);
+        restored.open(stateFile, CAPACITY);
+        // Restored in the order of the last used time, the saved segments take precedence
+        for (int i = 19; i >= 0; i--) {
+            restored.onRestore(i, "key" + i, 1);
+        }
+        List<Long> restoredVictims = restored.getVictims(20, 0);
+        assertEquals(20, restoredVictims.size());
+        // Probation, protected and window, the order inside each segment follows the last used time
+        assertTrue(restoredVictims.subList(0, 9).containsAll(victims.subList(0, 9)));
+        assertTrue(restoredVictims.subList(9, 19).containsAll(victims.subList(9, 19)));
+        assertEquals(victims.get(19), restoredVictims.get(19));
+    }
+}
@@ -0,0 +1,790 @@
+package com.gazman.disk_cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plain JVM tests of the cache, running on the log journal
+ */
+public class VIFTest {
+    private static final long MAX_SIZE = 1024 * 1024;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private File dir;
+    private VIF vif;
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "vif_" + System.nanoTime());
+        vif = newCache();
+    }
+
+    @After
+    public void tearDown() {
+        vif.shutDownAndWait();
+        deleteDir(dir);
+    }
+
+    @Test
+    public void testFuturesComplete() throws Exception {
+        byte[] payload = payload(1000);
+        assertTrue(vif.putAsync("key", new ByteArrayInputStream(payload)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        File file = vif.getAsFileAsync("key").get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(file);
+        assertEquals(payload.length, file.length());
+        assertNull(vif.getAsFileAsync("missing").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(vif.deleteAsync("key").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(vif.deleteAsync("key").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailingStreamCompletesPut() throws Exception {
+        assertFalse(vif.putAsync("broken", new FailingInputStream()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(vif.getAsFileAsync("broken").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        Map<String, InputStream> entries = new LinkedHashMap<>();
+        entries.put("good", new ByteArrayInputStream(payload(100)));
+        entries.put("broken", new FailingInputStream());
+        final AtomicReference<Map<String, Boolean>> results = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        vif.putAll(entries, result -> {
+            results.set(result);
+            latch.countDown();
+        });
+        assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(results.get().get("good"));
+        assertFalse(results.get().get("broken"));
+
+        // The cache thread survived the failures
+        assertTrue(vif.putAsync("key", new ByteArrayInputStream(payload(100))).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNotNull(vif.getAsFileAsync("key").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailingParserCompletesGet() throws Exception {
+        vif.putAsync("key", new ByteArrayInputStream(payload(100))).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        CacheFuture<Object> future = vif.getAsObjectAsync("key", file -> {
+            throw new IllegalStateException("parse error");
+        });
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            throw new AssertionError("The parse error was not reported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testPriorities() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CacheFuture<Boolean> blocking = vif.putAsync("blocking", new BlockingInputStream(release));
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<CacheFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(track(order, "low" + i, vif.putAsync("low" + i, new ByteArrayInputStream(payload(100)),
+                    Priority.LOW)));
+        }
+        futures.add(track(order, "normal", vif.putAsync("normal", new ByteArrayInputStream(payload(100)))));
+        release.countDown();
+        assertTrue(blocking.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (CacheFuture<Boolean> future : futures) {
+            assertTrue(future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        assertEquals("normal", order.get(0));
+    }
+
+    @Test
+    public void testReadsSeeEarlierWrites() throws Exception {
+        byte[] payload = payload(1000);
+        vif.putAsync("key", new ByteArrayInputStream(payload), Priority.LOW);
+        File file = vif.getAsFileAsync("key", Priority.HIGH).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(file);
+        assertEquals(payload.length, file.length());
+        vif.delete("key");
+        assertNull(vif.getAsFileAsync("key", Priority.HIGH).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPendingWriteDoesNotBlockOtherKeysOfItsStripe() throws Exception {
+        StripedLocks stripes = new StripedLocks(VIF.LOCK_STRIPES);
+        String neighbour = null;
+        for (int i = 0; neighbour == null; i++) {
+            if (stripes.get("key" + i) == stripes.get("slow")) {
+                neighbour = "key" + i;
+            }
+        }
+        put(vif, neighbour, payload(100));
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingInputStream slowStream = new BlockingInputStream(release);
+        CacheFuture<Boolean> slowPut = vif.putAsync("slow", slowStream);
+        try {
+            assertTrue(slowStream.reading.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertNotNull(vif.getAsFileAsync(neighbour).get(2, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        assertTrue(slowPut.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReadBehindPendingWriteCompletesOnShutDown() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingInputStream slowStream = new BlockingInputStream(release);
+        CacheFuture<Boolean> slowPut = vif.putAsync("slow", slowStream);
+        CacheFuture<File> read;
+        try {
+            assertTrue(slowStream.reading.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            read = vif.getAsFileAsync("slow");
+            vif.shutDown();
+        } finally {
+            release.countDown();
+        }
+        assertTrue(slowPut.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNotNull(read.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTinyLfuKeepsHotEntriesThroughScan() throws Exception {
+        vif.setEvictionPolicy(new TinyLfuPolicy(1000));
+        byte[] payload = payload(10 * 1024);
+        for (int i = 0; i < 10; i++) {
+            vif.putAsync("hot" + i, new ByteArrayInputStream(payload)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10; i++) {
+                assertNotNull(vif.getAsFileAsync("hot" + i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+        }
+        for (int i = 0; i < 200; i++) {
+            vif.putAsync("scan" + i, new ByteArrayInputStream(payload)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        awaitSize(vif, MAX_SIZE);
+        for (int i = 0; i < 10; i++) {
+            assertNotNull("hot" + i + " was evicted", vif.getAsFileAsync("hot" + i).get(TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testDeduplicationAcrossReplace() throws Exception {
+        vif.setDeduplication(true);
+        byte[] shared = payload(10 * 1024);
+        put(vif, "a", shared);
+        put(vif, "b", shared);
+        File blob = getFile(vif, "a");
+        assertEquals(blob, getFile(vif, "b"));
+        assertEquals(shared.length, vif.getStats().getTotalSize());
+
+        put(vif, "a", payload(1000));
+        assertTrue("The blob was removed while b points to it", blob.exists());
+        assertEquals(blob, getFile(vif, "b"));
+        assertArrayEquals(shared, readFile(getFile(vif, "b")));
+
+        put(vif, "b", payload(2000));
+        assertFalse("The blob was kept after its last entry was replaced", blob.exists());
+        assertEquals(1000 + 2000, vif.getStats().getTotalSize());
+    }
+
+    @Test
+    public void testDeduplicationAcrossEviction() throws Exception {
+        vif.setDeduplication(true);
+        byte[] shared = payload(100 * 1024);
+        put(vif, "x1", shared);
+        put(vif, "x2", shared);
+        File blob = getFile(vif, "x1");
+        for (int i = 0; i < 7; i++) {
+            put(vif, "unique" + i, payload(100 * 1024 + i + 1));
+        }
+        // The least recently used entries are now x1, unique0... and x2 last
+        assertEquals(blob, getFile(vif, "x2"));
+        for (int i = 7; i < 10; i++) {
+            put(vif, "unique" + i, payload(100 * 1024 + i + 1));
+        }
+        awaitSize(vif, MAX_SIZE);
+        assertTrue(vif.getStats().getEvictionCount() > 0);
+        assertTrue("The blob was evicted with x1 while x2 points to it", blob.exists());
+        assertArrayEquals(shared, readFile(blob));
+
+        for (int i = 10; i < 20; i++) {
+            put(vif, "unique" + i, payload(100 * 1024 + i + 1));
+        }
+        awaitSize(vif, MAX_SIZE);
+        assertFalse("The blob was kept after its last entry was evicted", blob.exists());
+        assertNull(getFile(vif, "x2"));
+    }
+
+    @Test
+    public void testWarmUpHottestEntries() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            put(vif, "key" + i, payload(i % 2 == 0 ? 1000 : 10000));
+            // Distinct creation times rank the entries
+            Thread.sleep(5);
+        }
+        vif.shutDownAndWait();
+        vif = newCache();
+
+        WarmUpResult result = vif.warmUp(3, Long.MAX_VALUE).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(3, result.getEntryCount());
+        assertEquals(10000 + 1000 + 10000, result.getBytes());
+        // key7 does not fit and is skipped, key6 still fits
+        result = vif.warmUp(100, 12000).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(3, result.getEntryCount());
+        assertEquals(12000, result.getBytes());
+        assertEquals(0, vif.getStats().getHitCount());
+
+        vif.setMemoryCache(1024 * 1024, (key, value) -> 1);
+        final AtomicInteger parses = new AtomicInteger();
+        VIF.Parser<Long> parser = file -> {
+            parses.incrementAndGet();
+            return file.length();
+        };
+        result = vif.warmUp(2, Long.MAX_VALUE, parser).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(2, result.getEntryCount());
+        assertEquals(2, parses.get());
+        assertEquals(Long.valueOf(10000), vif.getAsObjectAsync("key9", parser).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("The warmed entry was parsed again", 2, parses.get());
+    }
+
+    @Test
+    public void testWarmUpCompletesOnShutDown() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            put(vif, "key" + i, payload(1000));
+        }
+        CacheFuture<WarmUpResult> warmUp = vif.warmUp(10, Long.MAX_VALUE);
+        vif.shutDown();
+        WarmUpResult result = warmUp.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(3, result.getEntryCount());
+        assertEquals(3 * 1000, result.getBytes());
+    }
+
+    @Test
+    public void testTailingStreamBlocksUntilBytesArrive() throws Exception {
+        byte[] payload = payload(3000);
+        FeedingInputStream source = new FeedingInputStream();
+        CacheFuture<Boolean> put = vif.putAsync("key", source);
+        final InputStream stream = openStream(vif, "key");
+        assertNotNull(stream);
+        try {
+            source.feed(payload, 0, 1000);
+            byte[] read = new byte[payload.length];
+            DataInputStream dataStream = new DataInputStream(stream);
+            dataStream.readFully(read, 0, 1000);
+
+            final CountDownLatch readDone = new CountDownLatch(1);
+            final AtomicInteger nextByte = new AtomicInteger(-2);
+            new Thread(() -> {
+                try {
+                    nextByte.set(stream.read());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                readDone.countDown();
+            }).start();
+            assertFalse("The read did not wait for the bytes", readDone.await(200, TimeUnit.MILLISECONDS));
+            source.feed(payload, 1000, 2000);
+            assertTrue(readDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(payload[1000] & 0xff, nextByte.get());
+            read[1000] = (byte) nextByte.get();
+            dataStream.readFully(read, 1001, 1999);
+
+            source.end();
+            assertTrue(put.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertEquals("The stream did not end at the commit", -1, stream.read());
+            assertArrayEquals(payload, read);
+        } finally {
+            source.end();
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testTailingStreamOutlivesRename() throws Exception {
+        byte[] payload = payload(100 * 1024);
+        FeedingInputStream source = new FeedingInputStream();
+        CacheFuture<Boolean> put = vif.putAsync("key", source);
+        InputStream stream = openStream(vif, "key");
+        assertNotNull(stream);
+        source.feed(payload, 0, payload.length);
+        source.end();
+        assertTrue(put.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(getFile(vif, "key").exists());
+        assertArrayEquals(payload, readStream(stream));
+    }
+
+    @Test
+    public void testTailingStreamOutlivesPacking() throws Exception {
+        vif.setSlabThreshold(4096);
+        byte[] payload = payload(1000);
+        FeedingInputStream source = new FeedingInputStream();
+        CacheFuture<Boolean> put = vif.putAsync("key", source);
+        InputStream stream = openStream(vif, "key");
+        assertNotNull(stream);
+        source.feed(payload, 0, payload.length);
+        source.end();
+        assertTrue(put.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertArrayEquals(payload, readStream(stream));
+        assertArrayEquals(payload, readStream(openStream(vif, "key")));
+    }
+
+    @Test
+    public void testTailingStreamFailsOnAbort() throws Exception {
+        FeedingInputStream source = new FeedingInputStream();
+        CacheFuture<Boolean> put = vif.putAsync("key", source);
+        InputStream stream = openStream(vif, "key");
+        assertNotNull(stream);
+        source.feed(payload(1000), 0, 1000);
+        source.fail();
+        assertFalse(put.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        try {
+            readStream(stream);
+            throw new AssertionError("The stream of an aborted put ended normally");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertNull(openStream(vif, "key"));
+    }
+
+    @Test
+    public void testLaterPutReplacesTailedPut() throws Exception {
+        byte[] first = payload(1000);
+        byte[] second = payload(2000);
+        FeedingInputStream firstSource = new FeedingInputStream();
+        FeedingInputStream secondSource = new FeedingInputStream();
+        CacheFuture<Boolean> firstPut = vif.putAsync("key", firstSource);
+        InputStream firstStream = openStream(vif, "key");
+        CacheFuture<Boolean> secondPut = vif.putAsync("key", secondSource);
+        InputStream secondStream = openStream(vif, "key");
+        try {
+            firstSource.feed(first, 0, first.length);
+            firstSource.end();
+            assertTrue(firstPut.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            // The first put is committed and superseded, its stream still serves its bytes
+            assertArrayEquals(first, readStream(firstStream));
+            InputStream lateStream = openStream(vif, "key");
+
+            secondSource.feed(second, 0, second.length);
+            secondSource.end();
+            assertTrue(secondPut.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertArrayEquals(second, readStream(secondStream));
+            assertArrayEquals(second, readStream(lateStream));
+        } finally {
+            firstSource.end();
+            secondSource.end();
+        }
+    }
+
+    @Test
+    public void testPackedEntriesSurviveRestart() throws Exception {
+        vif.setSlabThreshold(4096);
+        for (int i = 0; i < 20; i++) {
+            put(vif, "key" + i, payload(1000 + i));
+        }
+        File slab = new File(dir, "slabs/1.slab");
+        assertEquals(20 * 1000 + 19 * 20 / 2, slab.length());
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(payload(1000 + i), readStream(openStream(vif, "key" + i)));
+        }
+        vif.shutDownAndWait();
+        vif = newCache();
+        vif.setSlabThreshold(4096);
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(payload(1000 + i), readStream(openStream(vif, "key" + i)));
+        }
+        // New entries go to a new slab, the old one keeps serving its entries
+        put(vif, "new", payload(500));
+        assertTrue(new File(dir, "slabs/2.slab").exists());
+        assertArrayEquals(payload(500), readStream(openStream(vif, "new")));
+        assertArrayEquals(payload(1000), readStream(openStream(vif, "key0")));
+    }
+
+    @Test
+    public void testGetAsFileExtractsPackedEntry() throws Exception {
+        vif.setSlabThreshold(4096);
+        put(vif, "key", payload(1000));
+        put(vif, "other", payload(2000));
+        File file = getFile(vif, "key");
+        assertFalse("The slab was returned", file.getParentFile().getName().equals("slabs"));
+        assertArrayEquals(payload(1000), readFile(file));
+        assertEquals(file, getFile(vif, "key"));
+
+        vif.shutDownAndWait();
+        vif = newCache();
+        vif.setSlabThreshold(4096);
+        // The MOVE record points the entry to its extracted file
+        assertEquals(file, getFile(vif, "key"));
+        assertArrayEquals(payload(1000), readStream(openStream(vif, "key")));
+        assertArrayEquals(payload(2000), readStream(openStream(vif, "other")));
+        assertTrue(vif.deleteAsync("key").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testSparseSlabIsCompacted() throws Exception {
+        vif.shutDownAndWait();
+        vif = new VIF(dir, 4 * MAX_SIZE);
+        vif.setCallbackExecutor(Runnable::run);
+        vif.setSlabThreshold(4096);
+        // 262 entries fill the first slab, the rest go to the second one
+        for (int i = 0; i < 300; i++) {
+            put(vif, "key" + i, payload(4000 + i % 2));
+        }
+        File firstSlab = new File(dir, "slabs/1.slab");
+        assertTrue(firstSlab.exists());
+        for (int i = 0; i < 262; i++) {
+            if (i % 3 != 0) {
+                assertTrue(vif.deleteAsync("key" + i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (firstSlab.exists()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("The sparse slab was not compacted");
+            }
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 300; i++) {
+            byte[] bytes = readStreamOrNull(openStream(vif, "key" + i));
+            if (i < 262 && i % 3 != 0) {
+                assertNull(bytes);
+            } else {
+                assertArrayEquals("key" + i, payload(4000 + i % 2), bytes);
+            }
+        }
+
+        vif.shutDownAndWait();
+        vif = new VIF(dir, 4 * MAX_SIZE);
+        vif.setCallbackExecutor(Runnable::run);
+        vif.setSlabThreshold(4096);
+        for (int i = 0; i < 262; i += 3) {
+            assertArrayEquals("key" + i, payload(4000 + i % 2), readStream(openStream(vif, "key" + i)));
+        }
+        assertArrayEquals(payload(4000 + 299 % 2), readStream(openStream(vif, "key299")));
+    }
+
+    @Test
+    public void testFlatCacheIsMigrated() throws Exception {
+        vif.setDirectoryLevels(0);
+        for (int i = 0; i < 20; i++) {
+            put(vif, "key" + i, payload(1000 + i));
+        }
+        assertEquals(dir, getFile(vif, "key0").getParentFile());
+        vif.shutDownAndWait();
+
+        vif = newCache();
+        vif.setDirectoryLevels(2);
+        assertMigrated(2);
+        vif.shutDownAndWait();
+
+        vif = newCache();
+        vif.setDirectoryLevels(1);
+        assertMigrated(1);
+    }
+
+    @Test
+    public void testInterruptedMigrationIsResumed() throws Exception {
+        vif.setDirectoryLevels(0);
+        for (int i = 0; i < 20; i++) {
+            put(vif, "key" + i, payload(1000 + i));
+        }
+        vif.shutDownAndWait();
+        // Moves half of the files, as if the migration was interrupted before writing the layout file
+        FileLayout newLayout = new FileLayout(2);
+        File[] files = dir.listFiles();
+        assertNotNull(files);
+        int moved = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isFile() && name.endsWith(".vif") && moved++ % 2 == 0) {
+                File newFile = newLayout.toFile(dir, Long.parseLong(name.substring(0, name.length() - 4)));
+                FileLayout.ensureParent(newFile);
+                assertTrue(file.renameTo(newFile));
+            }
+        }
+        assertEquals(20, moved);
+
+        vif = newCache();
+        vif.setDirectoryLevels(2);
+        assertMigrated(2);
+    }
+
+    @Test
+    public void testEncodedEntryReads() throws Exception {
+        vif.setCodec(Codec.DEFLATE);
+        byte[] payload = compressiblePayload(20000);
+        put(vif, "key", payload);
+        assertTrue("The entry was not encoded", vif.getStats().getTotalSize() < payload.length);
+
+        assertArrayEquals(payload, readStream(openStream(vif, "key")));
+        File file = getFile(vif, "key");
+        assertEquals(new File(dir, "decoded"), file.getParentFile());
+        assertArrayEquals(payload, readFile(file));
+        VIF.Parser<byte[]> parser = VIFTest::readFile;
+        assertArrayEquals(payload, vif.getAsObjectAsync("key", parser).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDecodedCopyIsRemoved() throws Exception {
+        vif.setCodec(Codec.DEFLATE);
+        put(vif, "key", compressiblePayload(20000));
+        File decoded = getFile(vif, "key");
+        assertTrue(decoded.exists());
+        byte[] replacement = compressiblePayload(30000);
+        put(vif, "key", replacement);
+        assertFalse("The decoded copy was kept after a replace", decoded.exists());
+
+        File replacementCopy = getFile(vif, "key");
+        assertArrayEquals(replacement, readFile(replacementCopy));
+        assertTrue(vif.deleteAsync("key").get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse("The decoded copy was kept after a delete", replacementCopy.exists());
+
+        put(vif, "other", compressiblePayload(10000));
+        File otherCopy = getFile(vif, "other");
+        vif.shutDownAndWait();
+        assertTrue(otherCopy.exists());
+        vif = newCache();
+        vif.setCodec(Codec.DEFLATE);
+        // Any read waits for the start, that clears the decoded copies
+        assertArrayEquals(compressiblePayload(10000), readStream(openStream(vif, "other")));
+        assertFalse("The decoded copy was kept after a restart", otherCopy.exists());
+        assertArrayEquals(compressiblePayload(10000), readFile(getFile(vif, "other")));
+    }
+
+    /**
+     * Checks that all the entries of the migration tests are readable from the given levels
+     */
+    private void assertMigrated(int levels) throws Exception {
+        for (int i = 0; i < 20; i++) {
+            File file = getFile(vif, "key" + i);
+            assertNotNull("key" + i + " was lost", file);
+            File root = file;
+            for (int level = 0; level <= levels; level++) {
+                root = root.getParentFile();
+            }
+            assertEquals(dir, root);
+            assertArrayEquals(payload(1000 + i), readFile(file));
+        }
+    }
+
+    private VIF newCache() {
+        VIF vif = new VIF(dir, MAX_SIZE);
+        vif.setCallbackExecutor(Runnable::run);
+        return vif;
+    }
+
+    private static void put(VIF vif, String key, byte[] payload) throws Exception {
+        assertTrue(vif.putAsync(key, new ByteArrayInputStream(payload)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static File getFile(VIF vif, String key) throws Exception {
+        return vif.getAsFileAsync(key).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+        try {
+            inputStream.readFully(bytes);
+        } finally {
+            inputStream.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the stream of openInputStream or null if there is no such entry
+     */
+    private static InputStream openStream(VIF vif, String key) throws InterruptedException {
+        final AtomicReference<InputStream> result = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        vif.openInputStream(key, inputStream -> {
+            result.set(inputStream);
+            latch.countDown();
+        });
+        assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    /**
+     * Reads the stream to its end and closes it
+     */
+    private static byte[] readStream(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] readStreamOrNull(InputStream inputStream) throws IOException {
+        return inputStream != null ? readStream(inputStream) : null;
+    }
+
+    /**
+     * Waits for the eviction passes to bring the cache down to the given size
+     */
+    private static void awaitSize(VIF vif, long maxSize) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (vif.getStats().getTotalSize() > maxSize) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Size is still " + vif.getStats().getTotalSize());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static CacheFuture<Boolean> track(final List<String> order, final String name,
+                                              CacheFuture<Boolean> future) {
+        future.addListener((result, error) -> order.add(name), Runnable::run);
+        return future;
+    }
+
+    private static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+    private static byte[] compressiblePayload(int size) {
+        byte[] payload = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return payload;
+    }
+
+    private static void deleteDir(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteDir(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static class FailingInputStream extends InputStream {
+        @Override
+        public int read() {
+            throw new IllegalStateException("Source failed");
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            throw new IllegalStateException("Source failed");
+        }
+    }
+
+    /**
+     * Serves the bytes it is fed, blocks the cache thread while it waits for more
+     */
+    private static class FeedingInputStream extends InputStream {
+        private static final byte[] END = new byte[0];
+        private static final byte[] FAILURE = new byte[0];
+
+        private final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+        private byte[] chunk = new byte[0];
+        private int position;
+
+        void feed(byte[] bytes, int offset, int length) {
+            byte[] chunk = new byte[length];
+            System.arraycopy(bytes, offset, chunk, 0, length);
+            chunks.add(chunk);
+        }
+
+        void end() {
+            chunks.add(END);
+        }
+
+        void fail() {
+            chunks.add(FAILURE);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (chunk != END && position == chunk.length) {
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                position = 0;
+                if (chunk == FAILURE) {
+                    throw new IOException("Source failed");
+                }
+            }
+            if (chunk == END) {
+                return -1;
+            }
+            int count = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+
+    /**
+     * Holds the cache thread until released, then ends
+     */
+    private static class BlockingInputStream extends InputStream {
+        private final CountDownLatch release;
+        final CountDownLatch reading = new CountDownLatch(1);
+
+        BlockingInputStream(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public int read() {
+            reading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return -1;
+        }
+    }
+}